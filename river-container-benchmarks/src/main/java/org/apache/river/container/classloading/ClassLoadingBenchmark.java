@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Warm-up of a fresh application class loader: how long 'threads' threads
+ * take to load every class of the Jini platform jar through one
+ * VirtualFileSystemClassLoader, each thread taking an interleaved share of
+ * the names. The 'synchronized' loader is the same class without the
+ * parallel-capable registration, which is how the loader used to behave.
+ *
+ * @author trasukg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ClassLoadingBenchmark {
+
+    private static final String JAR = "platform.jar";
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+    @Param({"parallel", "synchronized"})
+    public String loader;
+    private File dir;
+    private FileObject root;
+    private List<String> classNames = new ArrayList<String>();
+    private ExecutorService executor;
+    private VirtualFileSystemClassLoader classLoader;
+
+    /**
+     * Not registered as parallel capable, so getClassLoadingLock() hands back
+     * the loader itself and every load serialises on it.
+     */
+    static class SynchronizedLoader extends VirtualFileSystemClassLoader {
+
+        SynchronizedLoader(FileObject fileSystemRoot, ClassLoader parent) {
+            super(fileSystemRoot, parent, null, true);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = File.createTempFile("class-loading", "");
+        dir.delete();
+        dir.mkdir();
+        copyPlatformClasses(new File(dir, JAR));
+        root = VFS.getManager().toFileObject(dir);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Copy the net.jini and com.sun.jini classes out of whichever jar we were
+     * loaded from, so the loader has a plain jar of its own to read.
+     */
+    private void copyPlatformClasses(File target) throws IOException {
+        File source = new File(net.jini.core.lookup.ServiceItem.class
+                .getProtectionDomain().getCodeSource().getLocation().getPath());
+        ZipInputStream in = new ZipInputStream(new FileInputStream(source));
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            byte[] buf = new byte[8192];
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null;) {
+                String name = entry.getName();
+                if (!name.endsWith(Strings.DOT_CLASS)
+                        || !(name.startsWith("net/jini/") || name.startsWith("com/sun/jini/"))) {
+                    continue;
+                }
+                out.putNextEntry(new ZipEntry(name));
+                for (int n; (n = in.read(buf)) > 0;) {
+                    out.write(buf, 0, n);
+                }
+                out.closeEntry();
+                classNames.add(name.substring(0, name.length() - Strings.DOT_CLASS.length())
+                        .replace(Strings.SLASH, Strings.DOT));
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoader() {
+        ClassLoader parent = ClassLoadingBenchmark.class.getClassLoader();
+        classLoader = "parallel".equals(loader)
+                ? new VirtualFileSystemClassLoader(root, parent, null, true)
+                : new SynchronizedLoader(root, parent);
+        classLoader.addClassPathEntry(JAR);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        new File(dir, JAR).delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public int warmUp() throws Exception {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            results.add(executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    int loaded = 0;
+                    for (int i = first; i < classNames.size(); i += threads) {
+                        try {
+                            classLoader.loadClass(classNames.get(i));
+                            loaded++;
+                        } catch (ClassNotFoundException ex) {
+                            // Depends on something that isn't on the classpath.
+                        } catch (LinkageError ex) {
+                            // Likewise.
+                        }
+                    }
+                    return loaded;
+                }
+            }));
+        }
+        int loaded = 0;
+        for (Future<Integer> result : results) {
+            loaded += result.get();
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checking a resource path against a filtered classpath entry, like the
+ * container liaison entries: the acceptors asked one at a time (which is
+ * what ClasspathFilter used to do), against the compiled filter. Run with
+ * '-prof gc' to see the allocation difference.
+ *
+ * @author trasukg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClasspathFilterBenchmark {
+
+    private static final String FILTER = "RiverSurrogate.jar("
+            + "org.apache.river.container.liaison.Strings, "
+            + "org.apache.river.container.liaison.VirtualFileSystemConfiguration, "
+            + "org.apache.river.container.liaison.VirtualFileSystemConfiguration$MyConfigParser, "
+            + "org.apache.river.container.liaison.ConfigurationFactory, "
+            + "\"META-INF/*\")";
+    @Param({"hit", "miss"})
+    public String path;
+    private String resourcePath;
+    private ClasspathFilter filter;
+    private Acceptor[] acceptors;
+
+    @Setup
+    public void setUp() {
+        filter = new ClasspathFilterBuilder().parseToFilters(FILTER).get(0);
+        List<Acceptor> list = filter.getAcceptors();
+        acceptors = list.toArray(new Acceptor[list.size()]);
+        resourcePath = "hit".equals(path)
+                ? "org/apache/river/container/liaison/ConfigurationFactory.class"
+                : "org/apache/river/container/codebase/ClassServer.class";
+    }
+
+    @Benchmark
+    public boolean resourceAcceptors() {
+        for (Acceptor a : acceptors) {
+            if (a.acceptsResource(resourcePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean compiledFilter() {
+        return filter.acceptsResource(resourcePath);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests per second through a real class server over loopback, for each
+ * server: small and large jar downloads, HEAD probes, and small downloads by
+ * many clients at once. Each benchmark thread is one client with its own
+ * keep-alive connection, except in the storm, where every download opens a
+ * connection of its own (as ClassServerLoadTest does).
+ *
+ * @author trasukg
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassServerBenchmark {
+
+    private static final byte[] GET_SMALL = Loopback.request("GET", Loopback.SMALL_PATH);
+    private static final byte[] GET_LARGE = Loopback.request("GET", Loopback.LARGE_PATH);
+    private static final byte[] HEAD_SMALL = Loopback.request("HEAD", Loopback.SMALL_PATH);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({Loopback.BLOCKING, Loopback.NIO})
+        public String server;
+        Loopback loopback;
+
+        @Setup
+        public void start() throws IOException {
+            loopback = new Loopback(server, new Properties());
+        }
+
+        @TearDown
+        public void stop() {
+            loopback.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+
+        Loopback.Client client;
+
+        @Setup
+        public void connect(Server server) throws IOException {
+            client = server.loopback.connect();
+        }
+
+        @TearDown
+        public void disconnect() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public long getSmallJar(Connection connection) throws IOException {
+        return connection.client.exchange(GET_SMALL, false);
+    }
+
+    @Benchmark
+    public long getLargeJar(Connection connection) throws IOException {
+        return connection.client.exchange(GET_LARGE, false);
+    }
+
+    @Benchmark
+    public long headProbe(Connection connection) throws IOException {
+        return connection.client.exchange(HEAD_SMALL, true);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long getSmallJarConcurrent(Connection connection) throws IOException {
+        return connection.client.exchange(GET_SMALL, false);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long getSmallJarStorm(Server server) throws IOException {
+        Loopback.Client client = server.loopback.connect();
+        try {
+            return client.exchange(GET_SMALL, false);
+        } finally {
+            client.close();
+        }
+    }
+}
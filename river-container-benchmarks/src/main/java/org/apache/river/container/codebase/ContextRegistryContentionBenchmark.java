@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.WorkManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Jar lookups while another application is being redeployed over and over:
+ * four request threads look up a jar of an application that isn't changing,
+ * and one deployer thread keeps replacing the other application's context.
+ * The lookups shouldn't slow down because of the redeploys.
+ *
+ * @author trasukg
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextRegistryContentionBenchmark {
+
+    private AbstractClassServer server;
+    private File dir;
+    private FileObject[] jars;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new AbstractClassServer() {
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+
+            @Override
+            WorkManager getWorkManager() {
+                return null;
+            }
+        };
+        dir = File.createTempFile("context-contention", "");
+        dir.delete();
+        dir.mkdir();
+        String[] names = {"stable-dl.jar", "churn-a-dl.jar", "churn-b-dl.jar"};
+        jars = new FileObject[names.length];
+        for (int i = 0; i < names.length; i++) {
+            File jar = new File(dir, names[i]);
+            jar.createNewFile();
+            jars[i] = VFS.getManager().toFileObject(jar);
+        }
+        server.createContext("stable").addFile(jars[0]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    @Group("redeploy")
+    @GroupThreads(4)
+    public FileObject lookup() {
+        return server.findFileObjectForPath("stable/stable-dl.jar");
+    }
+
+    @Benchmark
+    @Group("redeploy")
+    @GroupThreads(1)
+    public CodebaseContext deploy() {
+        CodebaseContext context = server.createContext("churn");
+        context.addFile(jars[1]);
+        context.addFile(jars[2]);
+        return context;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open-loop style load driver for the class servers: starts one on
+ * loopback, has a number of clients download from it as fast as they can for
+ * a while, then prints the request rate, throughput and latency
+ * percentiles. Unlike the JMH benchmarks it can use hundreds of clients, and
+ * its numbers are for the whole server rather than one operation.
+ * <p>
+ * Arguments are name=value pairs: server (blocking or nio), clients,
+ * seconds, warmup (seconds), jar (small or large), method (GET or HEAD) and
+ * any class server property, e.g. 'ioThreads=4'.
+ *
+ * @author trasukg
+ */
+public class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        options.setProperty("server", Loopback.NIO);
+        options.setProperty("clients", "64");
+        options.setProperty("seconds", "10");
+        options.setProperty("warmup", "3");
+        options.setProperty("jar", "small");
+        options.setProperty("method", "GET");
+        Properties serverProperties = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Arguments are name=value pairs, not '" + arg + "'");
+                System.exit(1);
+            }
+            String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+            if (options.containsKey(name)) {
+                options.setProperty(name, value);
+            } else {
+                serverProperties.setProperty(name, value);
+            }
+        }
+        Loopback loopback = new Loopback(options.getProperty("server"), serverProperties);
+        try {
+            run(loopback, options);
+        } finally {
+            loopback.close();
+        }
+    }
+
+    private static void run(final Loopback loopback, Properties options) throws Exception {
+        int clients = Integer.parseInt(options.getProperty("clients"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getProperty("warmup")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getProperty("seconds")));
+        final String method = options.getProperty("method").toUpperCase();
+        final byte[] request = Loopback.request(method, "large".equals(options.getProperty("jar"))
+                ? Loopback.LARGE_PATH : Loopback.SMALL_PATH);
+        final Histogram latency = new Histogram();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long measureFrom = System.nanoTime() + warmup;
+        final long end = measureFrom + duration;
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread("load-client-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        Loopback.Client client = loopback.connect();
+                        try {
+                            long now = System.nanoTime();
+                            while (now < end) {
+                                long result = client.exchange(request, method.equals("HEAD"));
+                                long then = now;
+                                now = System.nanoTime();
+                                if (result % 1000 != 200) {
+                                    failures.incrementAndGet();
+                                } else if (then >= measureFrom) {
+                                    latency.record(TimeUnit.NANOSECONDS.toMicros(now - then));
+                                    requests.incrementAndGet();
+                                    bytes.addAndGet(result / 1000);
+                                }
+                            }
+                        } finally {
+                            client.close();
+                        }
+                    } catch (IOException ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+        double seconds = duration / 1e9;
+        System.out.println(options.getProperty("server") + " server, " + clients + " clients, "
+                + method + " " + options.getProperty("jar") + " jar, "
+                + options.getProperty("seconds") + "s");
+        System.out.printf("  %.0f requests/s, %.1f MB/s, %d failures%n",
+                requests.get() / seconds, bytes.get() / seconds / (1024 * 1024), failures.get());
+        System.out.printf("  latency (us): p50 %d  p90 %d  p99 %d  p99.9 %d  max %d%n",
+                latency.percentile(50), latency.percentile(90), latency.percentile(99),
+                latency.percentile(99.9), latency.getMax());
+    }
+}
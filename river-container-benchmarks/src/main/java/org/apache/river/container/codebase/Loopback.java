@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.BasicWorkManager;
+
+/**
+ * A class server running on the loopback interface with a small and a large
+ * jar to download, and a keep-alive HTTP client to download them with. Used
+ * by the benchmarks and the load driver, so that they all measure the same
+ * thing.
+ *
+ * @author trasukg
+ */
+class Loopback {
+
+    static final String BLOCKING = "blocking", NIO = "nio";
+    static final int SMALL_JAR = 4 * 1024, LARGE_JAR = 4 * 1024 * 1024;
+    static final String SMALL_PATH = "/bench/small-dl.jar", LARGE_PATH = "/bench/large-dl.jar";
+    private static final int PORT = 19480;
+    private final File dir;
+    private final BasicWorkManager workManager = new BasicWorkManager("loopback");
+    final AbstractClassServer server;
+
+    /**
+     * Start a server.
+     *
+     * @param kind BLOCKING or NIO.
+     * @param extra Class server properties to add to (or override) the
+     * benchmark's.
+     */
+    Loopback(String kind, Properties extra) throws IOException {
+        dir = File.createTempFile("loopback", "");
+        dir.delete();
+        dir.mkdir();
+        Properties props = new Properties();
+        props.setProperty(Strings.INITIAL_PORT, Integer.toString(PORT));
+        props.setProperty(Strings.LISTEN_ADDRESSES, "127.0.0.1");
+        props.setProperty(Strings.HOST, "127.0.0.1");
+        props.setProperty(Strings.CACHE_SIZE, Integer.toString(2 * LARGE_JAR));
+        // Random content doesn't compress; don't spend the time trying.
+        props.setProperty(Strings.COMPRESSION, "false");
+        props.setProperty(Strings.MAX_CONNECTIONS_PER_CLIENT, "0");
+        props.putAll(extra);
+        if (BLOCKING.equals(kind)) {
+            ClassServer blocking = new ClassServer();
+            blocking.workManager = workManager;
+            blocking.properties = props;
+            blocking.init();
+            server = blocking;
+        } else if (NIO.equals(kind)) {
+            NioClassServer nio = new NioClassServer();
+            nio.workManager = workManager;
+            nio.properties = props;
+            nio.init();
+            server = nio;
+        } else {
+            throw new IllegalArgumentException(kind);
+        }
+        CodebaseContext context = server.createContext("bench");
+        context.addFile(VFS.getManager().toFileObject(jar("small-dl.jar", SMALL_JAR)));
+        context.addFile(VFS.getManager().toFileObject(jar("large-dl.jar", LARGE_JAR)));
+    }
+
+    private File jar(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    void close() {
+        if (server instanceof ClassServer) {
+            ((ClassServer) server).terminate();
+        } else {
+            ((NioClassServer) server).terminate();
+        }
+        workManager.shutdown();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    Client connect() throws IOException {
+        return new Client(server.getPort());
+    }
+
+    /**
+     * The request bytes for a GET or HEAD of the path.
+     */
+    static byte[] request(String method, String path) {
+        return CodebaseRequest.ascii(method + " " + path + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "User-Agent: Java/1.8\r\n"
+                + "Accept: text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2\r\n"
+                + "\r\n");
+    }
+
+    /**
+     * One persistent connection to the server.
+     */
+    static class Client {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int start = 0, filled = 0;
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Send the request and read the whole response.
+         *
+         * @param head Whether it's a HEAD request, so the response has no
+         * body whatever its Content-Length says.
+         * @return The response's status code plus 1000 times the body length,
+         * so that the work can't be optimised away.
+         */
+        long exchange(byte[] request, boolean head) throws IOException {
+            out.write(request);
+            out.flush();
+            int headEnd;
+            while ((headEnd = headEnd()) < 0) {
+                fill();
+            }
+            int status = (buffer[start + 9] - '0') * 100 + (buffer[start + 10] - '0') * 10
+                    + (buffer[start + 11] - '0');
+            long length = head ? 0 : contentLength(start, headEnd);
+            start = headEnd;
+            long remaining = length;
+            while (remaining > 0) {
+                if (start == filled) {
+                    start = filled = 0;
+                    fill();
+                }
+                int n = (int) Math.min(remaining, filled - start);
+                start += n;
+                remaining -= n;
+            }
+            return status + 1000 * length;
+        }
+
+        private void fill() throws IOException {
+            if (filled == buffer.length) {
+                System.arraycopy(buffer, start, buffer, 0, filled - start);
+                filled -= start;
+                start = 0;
+            }
+            int n = in.read(buffer, filled, buffer.length - filled);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            filled += n;
+        }
+
+        private int headEnd() {
+            for (int i = start; i + 3 < filled; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n'
+                        && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        private long contentLength(int from, int to) {
+            byte[] name = CodebaseRequest.ascii("\r\nContent-Length: ");
+            int i = from;
+            while (i + name.length < to
+                    && !CodebaseRequest.regionEquals(buffer, i, i + name.length, name)) {
+                i++;
+            }
+            long length = 0;
+            for (i += name.length; i < to && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+                length = length * 10 + buffer[i] - '0';
+            }
+            return length;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
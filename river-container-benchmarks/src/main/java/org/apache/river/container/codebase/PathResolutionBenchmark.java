@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.WorkManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to get from a request path to the jar, with a few or a
+ * lot of applications deployed: the String-based findFileObjectForPath(),
+ * and the byte-level path index that the request threads use.
+ *
+ * @author trasukg
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathResolutionBenchmark {
+
+    private static final int JARS_PER_APP = 5;
+    @Param({"1", "100"})
+    public int apps;
+    private AbstractClassServer server;
+    private File dir;
+    private String path;
+    private byte[] target;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new AbstractClassServer() {
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+
+            @Override
+            WorkManager getWorkManager() {
+                return null;
+            }
+        };
+        dir = File.createTempFile("path-resolution", "");
+        dir.delete();
+        dir.mkdir();
+        FileObject[] jars = new FileObject[JARS_PER_APP];
+        for (int j = 0; j < JARS_PER_APP; j++) {
+            File jar = new File(dir, "lib" + j + "-dl.jar");
+            jar.createNewFile();
+            jars[j] = VFS.getManager().toFileObject(jar);
+        }
+        for (int i = 0; i < apps; i++) {
+            CodebaseContext context = server.createContext("app" + i);
+            for (FileObject jar : jars) {
+                context.addFile(jar);
+            }
+        }
+        path = "app" + apps / 2 + "/lib3-dl.jar";
+        target = CodebaseRequest.ascii(path);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public FileObject findFileObjectForPath() {
+        return server.findFileObjectForPath(path);
+    }
+
+    @Benchmark
+    public Object indexLookup() {
+        int slash = CodebaseRequest.indexOf(target, '/', 0, target.length);
+        return server.index.lookup(target, 0, slash, slash + 1, target.length);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to find and parse a request head: a plain GET as the RMI
+ * class loaders send it, and a conditional GET that also has its validator
+ * pulled out.
+ *
+ * @author trasukg
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private final byte[] get = Loopback.request("GET", Loopback.SMALL_PATH);
+    private final byte[] conditional = CodebaseRequest.ascii("GET " + Loopback.SMALL_PATH
+            + " HTTP/1.1\r\n"
+            + "Host: 127.0.0.1\r\n"
+            + "If-None-Match: \"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\"\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n");
+    private final CodebaseRequest parser = new CodebaseRequest();
+
+    @Benchmark
+    public int parseGet() {
+        parser.parse(get, 0, AbstractClassServer.headEnd(get, get.length));
+        return parser.targetEnd;
+    }
+
+    @Benchmark
+    public String parseConditionalGet() {
+        parser.parse(conditional, 0, AbstractClassServer.headEnd(conditional, conditional.length));
+        return parser.header(CodebaseRequest.IF_NONE_MATCH);
+    }
+}
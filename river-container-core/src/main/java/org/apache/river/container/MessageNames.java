@@ -57,16 +57,22 @@ public class MessageNames {
             CLASSLOADER_IS="classLoaderIs",
             CLASSPATH_UNDEFINED="classpathUndefined",
             CLASS_SERVER_BAD_REQUEST="classServerBadRequest",
+            CLASS_SERVER_BUNDLE_BUILT="classServerBundleBuilt",
+            CLASS_SERVER_BUNDLE_FAILED="classServerBundleFailed",
             CLASS_SERVER_ERROR_ACCEPTING_CONNECTIONS="classServerErrorAcceptingConnections",
             CLASS_SERVER_ESTABLISHED="classServerEstablished",
             CLASS_SERVER_EXCEPTION_DURING_SHUTDOWN="classServerExceptionDuringShutdown",
             CLASS_SERVER_EXCEPTION_GETTING_BYTES="classServerExceptionGettingBytes",
+            CLASS_SERVER_EXCEPTION_READING_REQUEST="classServerExceptionReadingRequest",
             CLASS_SERVER_EXCEPTION_WRITING_RESPONSE="classServerExceptionWritingResponse",
+            CLASS_SERVER_HOST_CHANGED="classServerHostChanged",
+            CLASS_SERVER_HOST_UNRESOLVED="classServerHostUnresolved",
             CLASS_SERVER_INIT_FAILED="classServerInitFailed",
             CLASS_SERVER_NO_CONTENT_FOUND="classServerNoContentFound",
             CLASS_SERVER_RECEIVED_REQUEST="classServerReceivedRequest",
             CLASS_SERVER_RECEIVED_PROBE="classServerReceivedProbe",    
             CLASS_SERVER_REJECTED_PATH="classServerRejectedPath",
+            CLASS_SERVER_RESERVED_APP_ID="classServerReservedAppId",
             CLASS_SERVER_TERMINATED="classServerTerminated",
             CLIENT_APP_USAGE="clientAppUsage",
             CODESOURCE_IS="codeSourceIs",
@@ -124,6 +130,8 @@ public class MessageNames {
             SHUTDOWN_FAILED="shutdownFailed",
             SHUTDOWN_METHOD_HAS_PARAMETERS="shutdownMethodHasParameters",
             SHUTDOWN_METHOD_NOT_VOID="shutdownMethodIsntVoid",
+            STARTER_SERVICE_DEPLOYER_ARCHIVE_UNPACKED="starterServiceDeployerArchiveUnpacked",
+            STARTER_SERVICE_DEPLOYER_ARCHIVE_UNPACK_FAILED="starterServiceDeployerArchiveUnpackFailed",
             STARTER_SERVICE_DEPLOYER_FAILED_INIT="starterServiceDeployerFailedInit",
             STARTER_SERVICE_DEPLOYER_INITIALIZED="starterServiceDeployerInitialized",
             STARTER_SERVICE_DEPLOYER_STARTING="starterServiceDeployerStarting",
@@ -25,6 +25,7 @@ public class Strings {
 
     public static final String
             ADD_URL="addURL",
+            ARCHIVES="archives",
             BOOTSTRAP_CLASS_LOADER="bootstrapClassLoader",
             CLASS_LOADERS="classLoaders",
             COMMAND_LINE_ARGS = "commandLineArguments",
@@ -18,7 +18,12 @@
 
 package org.apache.river.container.classloading;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.river.container.MessageNames;
@@ -30,6 +35,10 @@ import org.apache.river.container.MessageNames;
  which would mean 'the class org.apache.ABC contained inside the jar file
  container.jar'.  The idea is to include selected packages from a jar file on the
  classpath,
+ <p>
+ When the jar is a plain local file, the entry can also hold it open as a
+ ZipFile, and class bytes are then read straight from that rather than
+ through the file object.
  * @author trasukg
  */
 public class ClasspathEntry {
@@ -37,11 +46,61 @@ public class ClasspathEntry {
 
     private FileObject fileObject=null;
 
+    private ZipFile zipFile=null;
+
     public ClasspathEntry(ClasspathFilter filter, FileObject fileObject) {
         this.fileObject=fileObject;
         this.classpathFilter=filter;
     }
 
+    public ClasspathEntry(ClasspathFilter filter, FileObject fileObject, ZipFile zipFile) {
+        this(filter, fileObject);
+        this.zipFile=zipFile;
+    }
+
+    /**
+     Returns the jar, if this entry holds it open.
+     */
+    ZipFile getZipFile() {
+        return zipFile;
+    }
+
+    /**
+     Read a resource from the jar we hold open.
+     @return The resource's bytes, or null if the jar doesn't have it or the
+     filter doesn't accept it.
+     @throws IOException if the jar can't be read, including when it has
+     been closed.
+     */
+    byte[] getContent(String name) throws IOException {
+        if (!classpathFilter.acceptsResource(name)) {
+            return null;
+        }
+        ZipEntry entry;
+        InputStream in;
+        try {
+            entry = zipFile.getEntry(name);
+            if (entry == null || entry.isDirectory()) {
+                return null;
+            }
+            in = zipFile.getInputStream(entry);
+        } catch (IllegalStateException ex) {
+            // ZipFile's way of saying it's been closed.
+            throw new IOException(zipFile.getName() + ": " + ex.getMessage());
+        }
+        try {
+            int size = (int) entry.getSize();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : 8192);
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     public FileObject resolveFile(String name) throws FileSystemException {
         if ((classpathFilter.acceptsResource(name))) {
             return fileObject.resolveFile(name);
@@ -18,6 +18,7 @@
 package org.apache.river.container.classloading;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -35,10 +36,26 @@ public class ClasspathFilter {
     public String getJarName() {
         return jarName;
     }
-    List<Acceptor> acceptors = new ArrayList<Acceptor>();
+    private final List<Acceptor> acceptors = new ArrayList<Acceptor>();
+    /* The acceptors compiled into one matcher; built on first use, and
+     dropped when an acceptor is added. */
+    private volatile ResourceTrie compiled = null;
 
+    /**
+    Add an acceptor; the filter accepts whatever any of its acceptors accepts.
+    Filters are built up by the ClasspathFilterBuilder before they're used.
+    */
+    public synchronized void addAcceptor(Acceptor acceptor) {
+        acceptors.add(acceptor);
+        compiled = null;
+    }
+
+    /**
+    Returns the acceptors, which can't be changed through the list; use
+    addAcceptor().
+    */
     public List<Acceptor> getAcceptors() {
-        return acceptors;
+        return Collections.unmodifiableList(acceptors);
     }
 
     /**
@@ -48,15 +65,20 @@ public class ClasspathFilter {
     @return
      */
     public boolean acceptsResource(String resourcePath) {
-
-        for (Acceptor a : getAcceptors()) {
-            if (a.acceptsResource(resourcePath)) {
-                return true;
-            }
+        ResourceTrie trie = compiled;
+        if (trie == null) {
+            trie = compile();
         }
-        return false;
+        return trie.acceptsResource(resourcePath);
     }
     
+    private synchronized ResourceTrie compile() {
+        if (compiled == null) {
+            compiled = new ResourceTrie(acceptors);
+        }
+        return compiled;
+    }
+
     public String toString() {
         return "("+acceptorString()+")";
     }
@@ -64,7 +86,7 @@ public class ClasspathFilter {
     private String acceptorString() {
         StringBuilder sb=new StringBuilder();
         boolean first=true;
-        for (Acceptor a: getAcceptors()) {
+        for (Acceptor a: acceptors) {
             if (!first) {
                 sb.append(", ");
             } else {
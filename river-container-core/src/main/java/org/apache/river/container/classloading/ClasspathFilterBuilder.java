@@ -75,19 +75,19 @@ public class ClasspathFilterBuilder {
                 String resourceName = VirtualFileSystemClassLoader.classToResourceName(node.toString());
                 log.fine("Building ResourceAcceptor with string '" + resourceName + "'");
                 Acceptor acc = new ResourceAcceptor(resourceName);
-                cpf.getAcceptors().add(acc);
+                cpf.addAcceptor(acc);
             }
             if (node instanceof ASTstringLiteral) {
                 log.fine("Building ResourceAcceptor with string '" + node.toString() + "'");
                 Acceptor acc = new ResourceAcceptor(node.toString());
-                cpf.getAcceptors().add(acc);
+                cpf.addAcceptor(acc);
             }
         }
         /* If there were no filter clauses, hence no acceptors, allow all
         patterns.
          */
         if (cpf.getAcceptors().isEmpty()) {
-            cpf.getAcceptors().add(new AllAcceptor());
+            cpf.addAcceptor(new AllAcceptor());
         }
         return cpf;
     }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resource names that a class loader has already looked for and not found.
+ * Introspection, resource bundles and service lookups ask for the same
+ * missing names over and over, and without this each one goes back through
+ * the classpath jars.
+ * <p>
+ * The cache holds at most 'capacity' names; when it fills up it's simply
+ * emptied, which is cheaper than tracking which names are still hot. The
+ * loader replaces the whole cache when its classpath changes.
+ *
+ * @author trasukg
+ */
+class MissCache {
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Boolean> names =
+            new ConcurrentHashMap<String, Boolean>();
+
+    MissCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean contains(String name) {
+        return names.containsKey(name);
+    }
+
+    void add(String name) {
+        if (names.size() >= capacity) {
+            names.clear();
+        }
+        names.put(name, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which classpath entries hold which packages, so that a resource lookup
+ * goes straight to the jars that can have it instead of asking every jar in
+ * turn. Entries are identified by their position on the classpath, and
+ * each package maps to the positions that contain it, in classpath order.
+ * <p>
+ * An index is never changed once built; adding an entry makes a new one,
+ * so lookups can read it without locking.
+ *
+ * @author trasukg
+ */
+class PackageIndex {
+
+    private static final int[] NONE = new int[0];
+    private final Map<String, int[]> packages;
+    /**
+     * Entries whose contents we couldn't list; every lookup has to try them.
+     */
+    private final int[] unindexed;
+
+    PackageIndex() {
+        this(new HashMap<String, int[]>(), NONE);
+    }
+
+    private PackageIndex(Map<String, int[]> packages, int[] unindexed) {
+        this.packages = packages;
+        this.unindexed = unindexed;
+    }
+
+    /**
+     * Returns an index that also has the entry at 'position' holding the
+     * given packages, or that has it unindexed if 'entryPackages' is null.
+     * The entry must come after any already in the index.
+     */
+    PackageIndex with(int position, Collection<String> entryPackages) {
+        if (entryPackages == null) {
+            return new PackageIndex(packages, append(unindexed, position));
+        }
+        Map<String, int[]> copy = new HashMap<String, int[]>(packages);
+        // Most packages live in just the one jar, so they can share an array.
+        int[] only = new int[]{position};
+        for (String pkg : entryPackages) {
+            int[] positions = copy.get(pkg);
+            copy.put(pkg.intern(), positions == null ? only : append(positions, position));
+        }
+        return new PackageIndex(copy, unindexed);
+    }
+
+    /**
+     * The positions of the entries that might hold the named resource, in
+     * classpath order. The caller mustn't modify the array.
+     */
+    int[] candidates(String resourceName) {
+        int start = resourceName.startsWith(Strings.SLASH) ? 1 : 0;
+        int slash = resourceName.lastIndexOf('/');
+        String pkg = slash < start ? Strings.EMPTY : resourceName.substring(start, slash);
+        int[] positions = packages.get(pkg);
+        if (positions == null) {
+            return unindexed;
+        }
+        if (unindexed.length == 0) {
+            return positions;
+        }
+        int[] merged = new int[positions.length + unindexed.length];
+        System.arraycopy(positions, 0, merged, 0, positions.length);
+        System.arraycopy(unindexed, 0, merged, positions.length, unindexed.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static int[] append(int[] positions, int position) {
+        int[] longer = new int[positions.length + 1];
+        System.arraycopy(positions, 0, longer, 0, positions.length);
+        longer[positions.length] = position;
+        return longer;
+    }
+}
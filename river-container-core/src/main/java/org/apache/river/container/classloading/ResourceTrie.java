@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ClasspathFilter's acceptors compiled into a single matcher. The path
+ * steps of all the ResourceAcceptors go into one trie, with a '*' step as a
+ * wildcard edge, and a resource path is matched by walking its steps
+ * straight out of the string, so a check allocates nothing.
+ * <p>
+ * Paths are divided into steps exactly the way ResourceAcceptor divides
+ * them with String.split("/"), trailing empty steps dropped and all, so
+ * the answers are the same as asking each acceptor in turn. Acceptors of
+ * other types are still asked in turn, after the trie.
+ *
+ * @author trasukg
+ */
+class ResourceTrie implements Acceptor {
+
+    private static final String[] NO_LABELS = new String[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Acceptor[] NO_ACCEPTORS = new Acceptor[0];
+    private final Node root = new Node();
+    private boolean acceptsAll = false;
+    private final Acceptor[] others;
+    private final int acceptorCount;
+
+    private static class Node {
+
+        String[] labels = NO_LABELS;
+        Node[] children = NO_NODES;
+        Node star = null;
+        boolean accepts = false;
+
+        Node child(String label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equals(label)) {
+                    return children[i];
+                }
+            }
+            String[] newLabels = new String[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, labels.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            newLabels[labels.length] = label;
+            newChildren[children.length] = new Node();
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[children.length - 1];
+        }
+    }
+
+    ResourceTrie(List<Acceptor> acceptors) {
+        List<Acceptor> rest = new ArrayList<Acceptor>();
+        for (Acceptor a : acceptors) {
+            if (a instanceof AllAcceptor) {
+                acceptsAll = true;
+            } else if (a instanceof ResourceAcceptor) {
+                add(((ResourceAcceptor) a).pathSteps);
+            } else {
+                rest.add(a);
+            }
+        }
+        others = rest.toArray(NO_ACCEPTORS);
+        acceptorCount = acceptors.size();
+    }
+
+    private void add(String[] pathSteps) {
+        Node node = root;
+        for (String step : pathSteps) {
+            if (Strings.STAR.equals(step)) {
+                if (node.star == null) {
+                    node.star = new Node();
+                }
+                node = node.star;
+            } else {
+                node = node.child(step);
+            }
+        }
+        node.accepts = true;
+    }
+
+    @Override
+    public boolean acceptsResource(String resourcePath) {
+        if (acceptsAll) {
+            return true;
+        }
+        // split() drops trailing empty steps; "" alone is one empty step.
+        int end = resourcePath.length();
+        while (end > 0 && resourcePath.charAt(end - 1) == '/') {
+            end--;
+        }
+        boolean matched = (end == 0 && resourcePath.length() > 0)
+                ? root.accepts
+                : matches(root, resourcePath, 0, end);
+        if (matched) {
+            return true;
+        }
+        for (Acceptor a : others) {
+            if (a.acceptsResource(resourcePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match the steps of path[start, end) from 'node'; 'start' past 'end'
+     * means there are no steps left.
+     */
+    private static boolean matches(Node node, String path, int start, int end) {
+        if (start > end) {
+            return node.accepts;
+        }
+        int slash = path.indexOf('/', start);
+        if (slash < 0 || slash > end) {
+            slash = end;
+        }
+        int length = slash - start;
+        String[] labels = node.labels;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].length() == length
+                    && path.regionMatches(start, labels[i], 0, length)
+                    && matches(node.children[i], path, slash + 1, end)) {
+                return true;
+            }
+        }
+        return node.star != null && matches(node.star, path, slash + 1, end);
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceTrie(" + acceptorCount + " acceptors)";
+    }
+}
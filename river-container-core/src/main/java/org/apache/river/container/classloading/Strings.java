@@ -27,6 +27,7 @@ public class Strings {
             DOT=".",
             DOT_CLASS=".class",
             EMPTY="",
+            FILE="file",
             GET_NAME="getName",
             GET_VALUE="getValue",
             ID="id",
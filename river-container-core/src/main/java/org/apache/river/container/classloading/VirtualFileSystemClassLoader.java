@@ -17,6 +17,7 @@
  */
 package org.apache.river.container.classloading;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -28,11 +29,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipFile;
 import net.jini.security.Security;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.FileTypeSelector;
 import org.apache.commons.vfs2.FileUtil;
 import org.apache.river.container.LocalizedRuntimeException;
 import org.apache.river.container.MessageNames;
@@ -43,10 +48,28 @@ import org.apache.river.container.MessageNames;
  */
 public class VirtualFileSystemClassLoader extends URLClassLoader {
 
+    /* Loading locks per class name rather than on the loader, so the threads
+     of a service don't all queue behind one monitor while it warms up. */
+    static {
+        registerAsParallelCapable();
+    }
+
     private FileObject fileSystemRoot = null;
-    private List<ClasspathEntry> classpathEntries = new ArrayList<ClasspathEntry>();
+    /* Read by every class load, written only when entries are added. */
+    private List<ClasspathEntry> classpathEntries = new CopyOnWriteArrayList<ClasspathEntry>();
+    /* Replaced, never modified, as entries are added. */
+    private volatile PackageIndex packageIndex = new PackageIndex();
+    private static final int MAX_MISSES = 1024;
+    /* Replaced when entries are added, so a lookup that raced the change
+     records its miss in the old cache and not the new one. */
+    private volatile MissCache misses = new MissCache(MAX_MISSES);
     private CodeSource codeSource = null;
     private boolean isAppPriority = false;
+    /**
+     * Set by close(); after that the loader finds no more classes or
+     * resources, as with URLClassLoader.
+     */
+    private volatile boolean closed = false;
 
     public VirtualFileSystemClassLoader(FileObject fileSystemRoot, ClassLoader parent, CodeSource codeSource) {
         this(fileSystemRoot, parent, codeSource, false);
@@ -102,13 +125,54 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
         }
     }
 
-    public void addClasspathFilters(List<ClasspathFilter> filters, FileObject fileRoot) throws FileSystemException {
+    public synchronized void addClasspathFilters(List<ClasspathFilter> filters, FileObject fileRoot) throws FileSystemException {
         for (ClasspathFilter filter : filters) {
             FileObject entryObject = fileRoot.resolveFile(filter.getJarName());
 
             FileObject entryFileSystem
                     = fileRoot.getFileSystem().getFileSystemManager().createFileSystem(entryObject);
-            classpathEntries.add(new ClasspathEntry(filter, entryFileSystem));
+            classpathEntries.add(new ClasspathEntry(filter, entryFileSystem, openLocalJar(entryObject)));
+            packageIndex = packageIndex.with(classpathEntries.size() - 1,
+                    packagesIn(entryFileSystem));
+        }
+        misses = new MissCache(MAX_MISSES);
+    }
+
+    /**
+     * Open the jar as a ZipFile if it's a plain local file, so classes can be
+     * read from it without going through the VFS layers. Returns null for
+     * anything else, e.g. a jar nested inside a service archive.
+     */
+    private static ZipFile openLocalJar(FileObject jar) {
+        if (!Strings.FILE.equals(jar.getName().getScheme())) {
+            return null;
+        }
+        try {
+            return new ZipFile(new File(jar.getURL().toURI()));
+        } catch (Exception ex) {
+            Logger.getLogger(VirtualFileSystemClassLoader.class.getName()).log(Level.FINE, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * List the directories in a jar, as package prefixes like 'org/apache'.
+     * The zip file system has already read the central directory, so this
+     * doesn't go back to the jar. Returns null if the jar can't be listed,
+     * in which case every lookup will try it.
+     */
+    private static List<String> packagesIn(FileObject jarRoot) {
+        try {
+            FileObject[] folders = jarRoot.findFiles(new FileTypeSelector(FileType.FOLDER));
+            List<String> packages = new ArrayList<String>(folders.length);
+            for (FileObject folder : folders) {
+                String pkg = jarRoot.getName().getRelativeName(folder.getName());
+                packages.add(Strings.DOT.equals(pkg) ? Strings.EMPTY : pkg);
+            }
+            return packages;
+        } catch (FileSystemException ex) {
+            Logger.getLogger(VirtualFileSystemClassLoader.class.getName()).log(Level.FINE, null, ex);
+            return null;
         }
     }
 
@@ -121,6 +185,9 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
      */
     @Override
     public URL findResource(final String name) {
+        if (closed) {
+            return null;
+        }
         try {
             return (URL) Security.doPrivileged(new PrivilegedExceptionAction<URL>() {
 
@@ -139,6 +206,9 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
 
     @Override
     public Enumeration<URL> findResources(final String name) throws IOException {
+        if (closed) {
+            return Collections.enumeration(Collections.<URL>emptyList());
+        }
 
         Enumeration result = (Enumeration) Security.doPrivileged(new PrivilegedAction<Enumeration>() {
 
@@ -160,61 +230,88 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
     }
 
     /**
-     * Find the file object for a resource by searching through all the
-     * classpath entries that have been set up.
+     * Find the file object for a resource by searching through the
+     * classpath entries that hold its package, in classpath order. Names
+     * that weren't found last time aren't looked for again until the
+     * classpath changes.
      *
      * @param name
      * @return
      */
     public FileObject findResourceFileObject(String name) {
-        for (ClasspathEntry cpEntry : classpathEntries) {
+        MissCache misses = this.misses;
+        if (misses.contains(name)) {
+            return null;
+        }
+        boolean failed = false;
+        for (int position : packageIndex.candidates(name)) {
+            ClasspathEntry cpEntry = classpathEntries.get(position);
             try {
                 FileObject fo = cpEntry.resolveFile(name);
                 if (fo != null && fo.isReadable()) {
                     return fo;
                 }
             } catch (FileSystemException ex) {
+                failed = true;
                 Logger.getLogger(VirtualFileSystemClassLoader.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        if (!failed) {
+            misses.add(name);
+        }
         return null;
     }
 
     /**
-     * Find the all the file objects for a resource by searching through all the
-     * classpath entries that have been set up.
+     * Find the all the file objects for a resource by searching through the
+     * classpath entries that hold its package.
      *
      * @param name
      * @return
      */
     public List<FileObject> findResourceFileObjects(String name) {
         List<FileObject> foList = new ArrayList<FileObject>();
-        for (ClasspathEntry cpEntry : classpathEntries) {
+        MissCache misses = this.misses;
+        if (misses.contains(name)) {
+            return foList;
+        }
+        boolean failed = false;
+        for (int position : packageIndex.candidates(name)) {
+            ClasspathEntry cpEntry = classpathEntries.get(position);
             try {
                 FileObject fo = cpEntry.resolveFile(name);
                 if (fo != null && fo.isReadable()) {
                     foList.add(fo);
                 }
             } catch (FileSystemException ex) {
+                failed = true;
                 Logger.getLogger(VirtualFileSystemClassLoader.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        if (foList.isEmpty() && !failed) {
+            misses.add(name);
+        }
         return foList;
     }
 
     @Override
     protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        if (closed) {
+            throw new ClassNotFoundException(name + " (class loader is closed)");
+        }
+        final String resourceName = classToResourceName(name);
+        if (misses.contains(resourceName)) {
+            throw new ClassMissException(name, resourceName);
+        }
         try {
             return (Class) Security.doPrivileged(new PrivilegedExceptionAction<Class>() {
 
                 public Class run() throws ClassNotFoundException {
-                    String resourceName = classToResourceName(name);
-                    FileObject resourceFileObject = findResourceFileObject(resourceName);
-                    if (resourceFileObject == null) {
-                        throw new ClassNotFoundException(name + "(" + resourceName + ")");
-                    }
                     try {
-                        byte[] bytes = FileUtil.getContent(resourceFileObject);
+                        byte[] bytes = findClassBytes(resourceName);
+                        if (bytes == null) {
+                            throw new ClassMissException(name, resourceName);
+                        }
                         return defineClass(name, bytes, 0, bytes.length);
                     } catch (IOException ioe) {
                         throw new ClassNotFoundException(name, ioe);
@@ -227,6 +324,74 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Read a class file from the first classpath entry that has it. Jars we
+     * hold open are read directly; the rest go through their file objects.
+     *
+     * @return The bytes, or null if no entry has the class.
+     */
+    private byte[] findClassBytes(String resourceName) throws IOException {
+        MissCache misses = this.misses;
+        boolean failed = false;
+        for (int position : packageIndex.candidates(resourceName)) {
+            ClasspathEntry cpEntry = classpathEntries.get(position);
+            if (cpEntry.getZipFile() != null) {
+                byte[] bytes = cpEntry.getContent(resourceName);
+                if (bytes != null) {
+                    return bytes;
+                }
+                continue;
+            }
+            try {
+                FileObject fo = cpEntry.resolveFile(resourceName);
+                if (fo != null && fo.isReadable()) {
+                    return FileUtil.getContent(fo);
+                }
+            } catch (FileSystemException ex) {
+                failed = true;
+                Logger.getLogger(VirtualFileSystemClassLoader.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (!failed) {
+            misses.add(resourceName);
+        }
+        return null;
+    }
+
+    /**
+     * Close the jars we hold open, as well as what the superclass holds.
+     * Classes already loaded carry on working, but nothing new is found
+     * through the loader afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (ClasspathEntry cpEntry : classpathEntries) {
+            if (cpEntry.getZipFile() != null) {
+                cpEntry.getZipFile().close();
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Thrown when a class simply isn't on our classpath. That's routine (the
+     * parent-first search ends here for every class the parent doesn't have,
+     * and app-priority loading starts here for every class), so it doesn't
+     * pay for a stack trace.
+     */
+    private static class ClassMissException extends ClassNotFoundException {
+
+        ClassMissException(String name, String resourceName) {
+            super(name + "(" + resourceName + ")");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     /**
      * Set the codebase URLs to an arbitrary list of URLs. These URLs form the
      * codebase annotation for classes loaded through this classloader. For the
@@ -325,6 +490,10 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
      *
      * </ul>
      *
+     * <p>
+     * The loader is registered as parallel capable, so this method holds
+     * the lock for <code>name</code> only, not the loader's monitor.
+     *
      * @param name the binary name of the class to load
      *
      * @param resolve if <code>true</code>, then {@link #resolveClass
@@ -335,24 +504,28 @@ public class VirtualFileSystemClassLoader extends URLClassLoader {
      * @throws ClassNotFoundException if the class could not be found
      *
      */
-    protected synchronized Class loadClass(String name, boolean resolve)
+    protected Class loadClass(String name, boolean resolve)
             throws ClassNotFoundException {
-        // First, check if the class has already been loaded
-	Class c = findLoadedClass(name);
-        if (c!=null) return c;
-        
-        if (isAppPriority) {
-            try {
-                c = findClass(name);
-            } catch (ClassNotFoundException e) {
-                return super.loadClass(name, resolve);
+        synchronized (getClassLoadingLock(name)) {
+            // First, check if the class has already been loaded
+            Class c = findLoadedClass(name);
+            if (c != null) {
+                return c;
             }
-            if (resolve) {
-                resolveClass(c);
+
+            if (isAppPriority) {
+                try {
+                    c = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    return super.loadClass(name, resolve);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            } else {
+                return super.loadClass(name, resolve);
             }
-            return c;
-        } else {
-            return super.loadClass(name, resolve);
         }
     }
 
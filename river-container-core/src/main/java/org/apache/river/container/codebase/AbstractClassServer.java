@@ -0,0 +1,1758 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.FileUtility;
+import org.apache.river.container.LocalizedRuntimeException;
+import org.apache.river.container.MessageNames;
+import org.apache.river.container.work.WorkManager;
+
+/**
+ * Common part of the codebase HTTP servers. Holds the codebase contexts, maps
+ * request paths onto the registered files and works out the HTTP response for
+ * a request line. Subclasses supply the network plumbing (blocking sockets in
+ * {@link ClassServer}, selectors in {@link NioClassServer}).
+ * <p>
+ * Note that the AnnotatedClassDeployer only looks at the members declared by
+ * the concrete class, so the injected fields and the &#64;Init/&#64;Shutdown
+ * methods have to live in the subclasses.
+ * <p>
+ * Jar contents are kept in an LRU {@link ContentCache} whose size is set by
+ * 'cacheSize' (bytes) in class-server.properties; 0 turns it off.
+ * <p>
+ * Connections are persistent (HTTP/1.1, or HTTP/1.0 with
+ * 'Connection: keep-alive') and requests may be pipelined; an idle
+ * connection is closed after 'keepAliveTimeout' milliseconds (default 15
+ * seconds, 0 closes every connection after one response).
+ * <p>
+ * Each jar goes out with a strong ETag (its SHA-256, worked out once and
+ * kept), a Last-Modified date and the 'cacheControl' policy from the
+ * properties, and conditional requests (If-None-Match, If-Modified-Since) for
+ * an unchanged jar get a 304.
+ * <p>
+ * With 'contentAddressedUrls=true', the codebase annotations take the form
+ * '/appId/&lt;sha256&gt;/jarName'. Those URLs are served as immutable, and a
+ * redeployed jar gets a new URL, so clients and proxies can cache them
+ * without ever checking back.
+ * <p>
+ * GET requests with a Range header (and an If-Range that still matches, if
+ * there is one) get a 206 with just the ranges asked for; several ranges
+ * come back as multipart/byteranges.
+ * <p>
+ * Unless 'compression=false', each jar added to a context is gzipped in the
+ * background and the copy kept in the content cache, to be sent to clients
+ * whose Accept-Encoding allows it.
+ *
+ * @author trasukg
+ */
+public abstract class AbstractClassServer implements CodebaseHandler, ClassServerMXBean {
+
+    private static final Logger logger =
+            Logger.getLogger(AbstractClassServer.class.getName(), MessageNames.BUNDLE_NAME);
+    /**
+     * Content cache size used when class-server.properties doesn't say.
+     */
+    static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+    static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 15000;
+    /**
+     * By default clients may keep a copy but have to check back (cheaply,
+     * with a conditional GET) before using it.
+     */
+    static final String DEFAULT_CACHE_CONTROL = "no-cache";
+    /**
+     * Most ranges we'll serve from one request; asking for more gets the
+     * whole file.
+     */
+    static final int MAX_RANGES = 16;
+    /**
+     * Cache key suffix for the gzip copy of a jar.
+     */
+    static final String GZIP_SUFFIX = "#gzip";
+    /**
+     * A gzip copy is only kept if it's smaller than this fraction of the
+     * original; jars are mostly compressed already, so often it isn't.
+     */
+    static final double MIN_COMPRESSION_SAVING = 0.95;
+    /**
+     * Length of a SHA-256 in hex.
+     */
+    static final int DIGEST_LENGTH = 64;
+    static final String MULTIPART_BOUNDARY = "RIVER_CODEBASE_BYTERANGES";
+    /**
+     * Content-addressed URLs never change what they point to, so they can be
+     * cached for as long as anyone likes.
+     */
+    static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    /**
+     * Where, under the application's path, its merged package index is
+     * served.
+     */
+    static final String INDEX_LIST = "META-INF/INDEX.LIST";
+    /**
+     * Start of a codebase bundle's name.
+     */
+    static final String BUNDLE_PREFIX = "bundle-";
+    /**
+     * The namespace that jars shared by all the applications are served
+     * from, as '/platform/jarName'.
+     */
+    static final String PLATFORM = "platform";
+    /**
+     * Largest request head (request line plus headers) that we'll accept.
+     */
+    static final int MAX_REQUEST_SIZE = 4096;
+    /**
+     * How often (ms) the advertised host name is looked up again, unless
+     * it's fixed in class-server.properties.
+     */
+    static final int DEFAULT_HOST_REFRESH_INTERVAL = 10 * 60 * 1000;
+    /**
+     * Admission control is off unless 'maxConnections' or
+     * 'maxConnectionsPerClient' is set.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS = 0;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_CLIENT = 0;
+    /**
+     * Seconds a client that was turned away is told to wait.
+     */
+    static final int DEFAULT_RETRY_AFTER = 5;
+    /**
+     * Connections the kernel may hold for each listener before we accept
+     * them.
+     */
+    static final int DEFAULT_ACCEPT_BACKLOG = 50;
+
+    /**
+     * The contexts by appId. Copy-on-write, like the jar tables in the
+     * contexts, so that request threads can look things up without locking.
+     */
+    volatile Map<String, ClassServerCodebaseContext> contexts =
+            Collections.emptyMap();
+    /**
+     * Every registered jar, for the request threads' lookups. Rebuilt by
+     * republish() whenever a context or jar table changes.
+     */
+    volatile PathIndex index = PathIndex.EMPTY;
+    ContentCache cache = new ContentCache(0);
+    /**
+     * How long (ms) an idle persistent connection is kept open; 0 means
+     * every connection is closed after one response.
+     */
+    int keepAliveTimeout = 0;
+    ContentDigests digests = new ContentDigests();
+    /**
+     * Cache-Control header value sent with the jars; empty for none.
+     */
+    String cacheControl = DEFAULT_CACHE_CONTROL;
+    boolean contentAddressed = false;
+    /**
+     * Whether single entries can be fetched out of the jars, as
+     * '/appId/jarName!/path/to/Class.class'.
+     */
+    boolean entryRequests = false;
+    JarIndexes jarIndexes = new JarIndexes();
+    boolean compression = true;
+    Map<String, CompressionStats> compressionStats =
+            new ConcurrentHashMap<String, CompressionStats>();
+    /**
+     * The host name that goes in the codebase annotations. Looked up once
+     * when the server starts, then refreshed in the background, so building
+     * an annotation never waits for DNS.
+     */
+    volatile String host = null;
+    /**
+     * Figures for each listening socket, by 'address:port'.
+     */
+    Map<String, ListenerStats> listenerStats =
+            new ConcurrentHashMap<String, ListenerStats>();
+    AdmissionControl admission = new AdmissionControl(0, 0, DEFAULT_RETRY_AFTER);
+    RequestMetrics metrics = new RequestMetrics(RequestMetrics.DEFAULT_RECENT_REQUESTS,
+            RequestMetrics.DEFAULT_TOP_JARS);
+    /**
+     * Total bytes per second for all the downloads, shared equally among the
+     * applications that are downloading; 0 for no limit.
+     */
+    volatile long bandwidth = 0;
+    /**
+     * The class server properties, for the per-application budgets.
+     */
+    Properties settings = new Properties();
+    /**
+     * Whether the codebase bundles are deflated.
+     */
+    boolean bundleCompression = true;
+    /**
+     * Where the codebase bundles are kept; null for the class server's
+     * working directory.
+     */
+    File bundleDirectory = null;
+    /**
+     * The context that holds the shared platform jars, once there are any,
+     * and how many contexts share each of them. Guarded by this.
+     */
+    private ClassServerCodebaseContext platform = null;
+    private final Map<String, Integer> platformRefs = new HashMap<String, Integer>();
+    int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+    boolean hostConfigured = false;
+    int hostRefreshInterval = DEFAULT_HOST_REFRESH_INTERVAL;
+    private ScheduledFuture<?> hostRefresh = null;
+    private boolean hostRefreshStopped = false;
+
+    /**
+     * Returns the port on which this server is listening.
+     */
+    public abstract int getPort();
+
+    /**
+     * Returns the hostname that the server advertises in the codebase
+     * annotations: either the 'host' from class-server.properties, or the
+     * local host's canonical name as last looked up.
+     */
+    public String getHost() {
+        String current = host;
+        if (current == null) {
+            // Not configured yet; look it up now, but only the once.
+            synchronized (this) {
+                if (host == null) {
+                    String resolved = resolveHost();
+                    host = resolved != null
+                            ? resolved : InetAddress.getLoopbackAddress().getHostAddress();
+                }
+                current = host;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Look up the local host's canonical name, which may well mean a
+     * reverse DNS lookup.
+     *
+     * @return The name, or null if it can't be found.
+     */
+    private static String resolveHost() {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            logger.log(Level.WARNING, MessageNames.CLASS_SERVER_HOST_UNRESOLVED, e);
+            return null;
+        }
+    }
+
+    /**
+     * Look the host name up again, and if it has changed, have the contexts
+     * build their annotations afresh.
+     */
+    void refreshHost() {
+        String resolved = resolveHost();
+        String previous = host;
+        if (resolved == null || resolved.equals(previous)) {
+            // Keep what we had rather than advertise nothing.
+            return;
+        }
+        logger.log(Level.INFO, MessageNames.CLASS_SERVER_HOST_CHANGED,
+                new Object[]{previous, resolved});
+        host = resolved;
+        for (ClassServerCodebaseContext context : contexts.values()) {
+            context.hostChanged();
+        }
+    }
+
+    /**
+     * Queue the next background lookup of the host name. Each lookup queues
+     * the one after it, until stopHostRefresh() is called.
+     */
+    synchronized void scheduleHostRefresh() {
+        if (hostConfigured || hostRefreshInterval <= 0 || hostRefreshStopped) {
+            return;
+        }
+        hostRefresh = getWorkManager().schedule(AbstractClassServer.class.getClassLoader(),
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        refreshHost();
+                        scheduleHostRefresh();
+                    }
+                }, hostRefreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopHostRefresh() {
+        hostRefreshStopped = true;
+        if (hostRefresh != null) {
+            hostRefresh.cancel(false);
+        }
+    }
+
+    @Override
+    public CodebaseContext createContext(String appId) {
+        if (PLATFORM.equals(appId)) {
+            throw new LocalizedRuntimeException(MessageNames.BUNDLE_NAME,
+                    MessageNames.CLASS_SERVER_RESERVED_APP_ID, new Object[]{appId});
+        }
+        // Create a context
+        ClassServerCodebaseContext context = new ClassServerCodebaseContext(this, appId);
+        // Assign a context prefix (url-shortened)
+        ClassServerCodebaseContext previous;
+        synchronized (this) {
+            Map<String, ClassServerCodebaseContext> copy =
+                    new HashMap<String, ClassServerCodebaseContext>(contexts);
+            previous = copy.put(appId, context);
+            contexts = Collections.unmodifiableMap(copy);
+            index = PathIndex.build(contexts);
+        }
+        if (previous != null) {
+            previous.releaseSharedFiles();
+            // Redeployed; anything cached for the old files is dead weight.
+            cache.invalidatePrefix(appId + Strings.SLASH);
+            digests.invalidatePrefix(appId + Strings.SLASH);
+            jarIndexes.invalidatePrefix(appId + Strings.SLASH);
+            metrics.forget(appId);
+        }
+        compressionStats.put(appId, new CompressionStats());
+        return context;
+    }
+
+    @Override
+    public void destroyContext(CodebaseContext context) {
+        // Remove all the jar mappings.
+        //destroy the context.
+        if (context instanceof ClassServerCodebaseContext) {
+            ((ClassServerCodebaseContext) context).releaseSharedFiles();
+        }
+        synchronized (this) {
+            Map<String, ClassServerCodebaseContext> copy =
+                    new HashMap<String, ClassServerCodebaseContext>(contexts);
+            copy.remove(context.getAppId());
+            contexts = Collections.unmodifiableMap(copy);
+            index = PathIndex.build(contexts);
+        }
+        cache.invalidatePrefix(context.getAppId() + Strings.SLASH);
+        digests.invalidatePrefix(context.getAppId() + Strings.SLASH);
+        jarIndexes.invalidatePrefix(context.getAppId() + Strings.SLASH);
+        compressionStats.remove(context.getAppId());
+        metrics.forget(context.getAppId());
+    }
+
+    /**
+     * Serve a jar from the shared platform namespace on behalf of one more
+     * context. The jar is registered there by the first context that shares
+     * it and dropped when the last one lets it go.
+     *
+     * @return Whether the jar is shared; false if a different file with the
+     * same name is shared already.
+     */
+    synchronized boolean sharePlatformFile(FileObject file) {
+        String name = file.getName().getBaseName();
+        if (platform == null) {
+            platform = new ClassServerCodebaseContext(this, PLATFORM);
+            Map<String, ClassServerCodebaseContext> copy =
+                    new HashMap<String, ClassServerCodebaseContext>(contexts);
+            copy.put(PLATFORM, platform);
+            contexts = Collections.unmodifiableMap(copy);
+            compressionStats.put(PLATFORM, new CompressionStats());
+        }
+        Integer refs = platformRefs.get(name);
+        if (refs == null) {
+            platform.addFile(file);
+            platformRefs.put(name, 1);
+            return true;
+        }
+        if (!platform.getFile(name).getName().equals(file.getName())) {
+            return false;
+        }
+        platformRefs.put(name, refs + 1);
+        return true;
+    }
+
+    /**
+     * A context no longer shares the named platform jar.
+     */
+    synchronized void releasePlatformFile(String name) {
+        Integer refs = platformRefs.get(name);
+        if (refs == null) {
+            return;
+        }
+        if (refs > 1) {
+            platformRefs.put(name, refs - 1);
+        } else {
+            platformRefs.remove(name);
+            platform.removeFile(name);
+        }
+    }
+
+    /**
+     * How many contexts share each platform jar.
+     */
+    @Override
+    public synchronized Map<String, Integer> getPlatformJars() {
+        return new TreeMap<String, Integer>(platformRefs);
+    }
+
+    /**
+     * Find the end of the first complete request head (the blank line after
+     * the headers) in buf[0, filled). Blank lines ahead of the request line
+     * are skipped, and left for the parser to skip too.
+     *
+     * @return The index just past the blank line, or -1 if we haven't got it
+     * all yet.
+     */
+    static int headEnd(byte[] buf, int filled) {
+        int start = 0;
+        while (start < filled && (buf[start] == '\r' || buf[start] == '\n')) {
+            start++;
+        }
+        for (int i = start; i < filled; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < filled && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < filled && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuild the path index after a context's jar table has changed.
+     */
+    synchronized void republish() {
+        index = PathIndex.build(contexts);
+    }
+
+    /**
+     * Forget what we've cached about one 'appId/jarName', because the
+     * context has mapped that name to a new file.
+     */
+    void invalidate(String key) {
+        cache.invalidate(key);
+        cache.invalidate(key + GZIP_SUFFIX);
+        digests.invalidate(key);
+        jarIndexes.invalidate(key);
+    }
+
+    /**
+     * Queue up the making of a gzip copy of a newly added jar. The copy is
+     * kept in the content cache, and only if it's worth having.
+     */
+    void precompress(final String appId, final FileObject fo) {
+        try {
+            if (!compression || !cache.accepts(fo.getContent().getSize())) {
+                return;
+            }
+        } catch (IOException ex) {
+            return;
+        }
+        getWorkManager().queueTask(AbstractClassServer.class.getClassLoader(), new Runnable() {
+
+            @Override
+            public void run() {
+                String jarName = fo.getName().getBaseName();
+                try {
+                    long size = fo.getContent().getSize();
+                    ByteBuffer gzipped = gzip(fo);
+                    compressionStats(appId + Strings.SLASH).compressed(jarName, size,
+                            gzipped.remaining());
+                    ClassServerCodebaseContext context = contexts.get(appId);
+                    if (gzipped.remaining() < size * MIN_COMPRESSION_SAVING
+                            && context != null && context.getFile(jarName) == fo) {
+                        cache.put(appId + Strings.SLASH + jarName + GZIP_SUFFIX, fo, gzipped);
+                    }
+                } catch (Exception ex) {
+                    logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, ex);
+                }
+            }
+        });
+    }
+
+    static ByteBuffer gzip(FileObject fo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes, CodebaseResponse.STREAM_BUFFER_SIZE);
+        InputStream in = fo.getContent().getInputStream();
+        try {
+            byte[] buffer = new byte[CodebaseResponse.STREAM_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        out.close();
+        ByteBuffer gzipped = ByteBuffer.allocateDirect(bytes.size());
+        gzipped.put(bytes.toByteArray());
+        gzipped.flip();
+        return gzipped;
+    }
+
+    /**
+     * Compression figures for the app that owns 'appId/...'.
+     */
+    private CompressionStats compressionStats(String key) {
+        CompressionStats stats = compressionStats.get(key.substring(0, key.indexOf('/')));
+        return stats != null ? stats : new CompressionStats();
+    }
+
+    /**
+     * Supplies the threads for background work.
+     */
+    abstract WorkManager getWorkManager();
+
+    /**
+     * Supplies the working directory, where the codebase bundles are kept
+     * unless 'bundleDirectory' says otherwise.
+     */
+    FileUtility getFileUtility() {
+        return null;
+    }
+
+    @Override
+    public Map<String, Double> getCompressionRatios() {
+        Map<String, Double> ratios = new TreeMap<String, Double>();
+        for (Map.Entry<String, CompressionStats> e : compressionStats.entrySet()) {
+            ratios.put(e.getKey(), e.getValue().getRatio());
+        }
+        return ratios;
+    }
+
+    @Override
+    public Map<String, Long> getCompressionBytesSaved() {
+        Map<String, Long> saved = new TreeMap<String, Long>();
+        for (Map.Entry<String, CompressionStats> e : compressionStats.entrySet()) {
+            saved.put(e.getKey(), e.getValue().getBytesSaved());
+        }
+        return saved;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return admission.getActive();
+    }
+
+    @Override
+    public int getQueuedConnections() {
+        return admission.getQueueDepth();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return admission.getRejected();
+    }
+
+    @Override
+    public long getConnectionsRejectedPerClient() {
+        return admission.getRejectedPerClient();
+    }
+
+    @Override
+    public Map<String, Long> getAppBandwidth() {
+        Map<String, Long> rates = new TreeMap<String, Long>();
+        for (Map.Entry<String, ClassServerCodebaseContext> e : contexts.entrySet()) {
+            rates.put(e.getKey(), e.getValue().budget.bucket.getRate());
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Integer> getAppDownloads() {
+        Map<String, Integer> downloads = new TreeMap<String, Integer>();
+        for (Map.Entry<String, ClassServerCodebaseContext> e : contexts.entrySet()) {
+            downloads.put(e.getKey(), e.getValue().budget.getDownloads());
+        }
+        return downloads;
+    }
+
+    @Override
+    public Map<String, Long> getAppDownloadsRejected() {
+        Map<String, Long> rejected = new TreeMap<String, Long>();
+        for (Map.Entry<String, ClassServerCodebaseContext> e : contexts.entrySet()) {
+            rejected.put(e.getKey(), e.getValue().budget.getRejected());
+        }
+        return rejected;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        return metrics.getStatusCounts();
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getAppLatency() {
+        return metrics.getLatency(false);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getAppResponseSize() {
+        return metrics.getSize(false);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getJarLatency() {
+        return metrics.getLatency(true);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getJarResponseSize() {
+        return metrics.getSize(true);
+    }
+
+    @Override
+    public List<JarRequestCount> getTopJars() {
+        return metrics.getTopJars();
+    }
+
+    @Override
+    public List<String> getRecentRequests() {
+        return metrics.getRecentRequests();
+    }
+
+    @Override
+    public Map<String, Long> getListenerConnections() {
+        Map<String, Long> connections = new TreeMap<String, Long>();
+        for (Map.Entry<String, ListenerStats> e : listenerStats.entrySet()) {
+            connections.put(e.getKey(), e.getValue().getConnections());
+        }
+        return connections;
+    }
+
+    @Override
+    public Map<String, Long> getListenerRequests() {
+        Map<String, Long> requests = new TreeMap<String, Long>();
+        for (Map.Entry<String, ListenerStats> e : listenerStats.entrySet()) {
+            requests.put(e.getKey(), e.getValue().getRequests());
+        }
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getListenerBytesSent() {
+        Map<String, Long> sent = new TreeMap<String, Long>();
+        for (Map.Entry<String, ListenerStats> e : listenerStats.entrySet()) {
+            sent.put(e.getKey(), e.getValue().getBytesSent());
+        }
+        return sent;
+    }
+
+    /**
+     * Set up the content cache and the connection settings from the class
+     * server properties.
+     */
+    void configure(Properties properties) {
+        String cacheSize = properties.getProperty(Strings.CACHE_SIZE);
+        cache = new ContentCache(cacheSize == null
+                ? DEFAULT_CACHE_SIZE : Long.parseLong(cacheSize.trim()));
+        keepAliveTimeout = intProperty(properties, Strings.KEEP_ALIVE_TIMEOUT,
+                DEFAULT_KEEP_ALIVE_TIMEOUT);
+        cacheControl = properties.getProperty(Strings.CACHE_CONTROL,
+                DEFAULT_CACHE_CONTROL).trim();
+        compression = Boolean.parseBoolean(
+                properties.getProperty(Strings.COMPRESSION, "true").trim());
+        contentAddressed = Boolean.parseBoolean(
+                properties.getProperty(Strings.CONTENT_ADDRESSED_URLS, "false").trim());
+        entryRequests = Boolean.parseBoolean(
+                properties.getProperty(Strings.ENTRY_REQUESTS, "false").trim());
+        String configuredHost = properties.getProperty(Strings.HOST, "").trim();
+        hostConfigured = configuredHost.length() > 0;
+        host = hostConfigured ? configuredHost : null;
+        hostRefreshInterval = intProperty(properties, Strings.HOST_REFRESH_INTERVAL,
+                DEFAULT_HOST_REFRESH_INTERVAL);
+        admission = new AdmissionControl(
+                intProperty(properties, Strings.MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS),
+                intProperty(properties, Strings.MAX_CONNECTIONS_PER_CLIENT,
+                        DEFAULT_MAX_CONNECTIONS_PER_CLIENT),
+                intProperty(properties, Strings.RETRY_AFTER, DEFAULT_RETRY_AFTER));
+        acceptBacklog = intProperty(properties, Strings.ACCEPT_BACKLOG, DEFAULT_ACCEPT_BACKLOG);
+        bandwidth = longProperty(properties, Strings.BANDWIDTH, 0);
+        settings = properties;
+        bundleCompression = Boolean.parseBoolean(
+                properties.getProperty(Strings.BUNDLE_COMPRESSION, "true").trim());
+        String bundleDir = properties.getProperty(Strings.BUNDLE_DIRECTORY, "").trim();
+        bundleDirectory = bundleDir.length() > 0 ? new File(bundleDir) : null;
+        metrics = new RequestMetrics(
+                intProperty(properties, Strings.RECENT_REQUESTS,
+                        RequestMetrics.DEFAULT_RECENT_REQUESTS),
+                intProperty(properties, Strings.TOP_JARS, RequestMetrics.DEFAULT_TOP_JARS));
+        // Do the first lookup now, while we're starting up anyway.
+        getHost();
+    }
+
+    @Override
+    public long getCacheBudget() {
+        return cache.getBudget();
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return cache.getEntryCount();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * The local addresses to listen on, from 'listenAddresses' in the class
+     * server properties: a comma-separated list of addresses, host names
+     * and interface names (e.g. 'eth0', which means all of that interface's
+     * addresses). Without it, the one listener takes connections on all
+     * interfaces.
+     *
+     * @return The addresses, with null standing for all interfaces.
+     */
+    static List<InetAddress> listenAddresses(Properties properties)
+            throws SocketException, UnknownHostException {
+        Set<InetAddress> addresses = new LinkedHashSet<InetAddress>();
+        StringTokenizer tokens = new StringTokenizer(
+                properties.getProperty(Strings.LISTEN_ADDRESSES, ""), ", ");
+        while (tokens.hasMoreTokens()) {
+            String name = tokens.nextToken();
+            NetworkInterface nic = NetworkInterface.getByName(name);
+            if (nic != null) {
+                addresses.addAll(Collections.list(nic.getInetAddresses()));
+            } else {
+                addresses.add(InetAddress.getByName(name));
+            }
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(null);
+        }
+        return new ArrayList<InetAddress>(addresses);
+    }
+
+    /**
+     * Bind the server socket to the first free port at or above the
+     * 'initialPort' given in the class server properties.
+     *
+     * @param address The local address to bind to; null for all of them.
+     */
+    void bindToFirstFreePort(ServerSocket server, InetAddress address,
+            Properties properties) throws IOException {
+        String initialPortStr = properties.getProperty(Strings.INITIAL_PORT);
+        if (initialPortStr == null) {
+            throw new LocalizedRuntimeException(
+                    MessageNames.BUNDLE_NAME,
+                    MessageNames.MISSING_PROPERTY_ENTRY,
+                    new Object[]{
+                        Strings.CLASS_SERVER_PROPERTIES,
+                        Strings.INITIAL_PORT
+                    });
+        }
+        int initialPort = Integer.parseInt(initialPortStr);
+        for(int port=initialPort; port<initialPort+100 ;port++)
+        try {
+            bind(server, address, port);
+            break;
+        } catch (BindException be) {
+            logger.log(Level.FINE, MessageNames.PORT_IN_USE, new Integer[] {port});
+        }
+    }
+
+    /**
+     * Bind another listener to the port that the first one got.
+     */
+    void bind(ServerSocket server, InetAddress address, int port) throws IOException {
+        server.bind(new InetSocketAddress(address, port), acceptBacklog);
+        logger.log(Level.INFO, MessageNames.CLASS_SERVER_ESTABLISHED,
+                new Object[]{server.getLocalSocketAddress(),
+                    server.getLocalPort()});
+    }
+
+    /**
+     * Note a response that has been sent in full.
+     */
+    void completed(CodebaseResponse response, InetAddress client, ListenerStats stats) {
+        long bytes = response.bytesWritten();
+        stats.served(bytes);
+        metrics.record(response, client, bytes);
+    }
+
+    /**
+     * Start keeping figures for a newly bound listener.
+     */
+    ListenerStats listenerStats(ServerSocket server) {
+        ListenerStats stats = new ListenerStats();
+        listenerStats.put(server.getInetAddress().getHostAddress()
+                + Strings.COLON + server.getLocalPort(), stats);
+        return stats;
+    }
+
+    static long longProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    /**
+     * Work out a new application's budget: 'appBandwidth.appId' and
+     * 'appMaxDownloads.appId' in the class server properties if they're
+     * there, otherwise 'appBandwidth' and 'appMaxDownloads'.
+     */
+    AppBudget budgetFor(String appId) {
+        long appBandwidth = longProperty(settings, Strings.APP_BANDWIDTH + '.' + appId,
+                longProperty(settings, Strings.APP_BANDWIDTH, 0));
+        int appMaxDownloads = intProperty(settings, Strings.APP_MAX_DOWNLOADS + '.' + appId,
+                intProperty(settings, Strings.APP_MAX_DOWNLOADS, 0));
+        return new AppBudget(this, appBandwidth, appMaxDownloads);
+    }
+
+    /**
+     * Whether a new application's jars are bundled into one: 'bundles.appId'
+     * in the class server properties if it's there, otherwise 'bundles'.
+     */
+    boolean bundles(String appId) {
+        return Boolean.parseBoolean(settings.getProperty(Strings.BUNDLES + '.' + appId,
+                settings.getProperty(Strings.BUNDLES, "false")).trim());
+    }
+
+    /**
+     * Returns the bundle of the given jars, building it if it isn't on disk
+     * already. The bundle's name comes from the jars' names and digests, so
+     * a bundle built before (even by an earlier run of the container) is
+     * used again for as long as the jars are the same.
+     *
+     * @return The bundle, or null if it couldn't be built.
+     */
+    FileObject bundle(String appId, Map<String, FileObject> jars) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((bundleCompression ? "deflated\n" : "stored\n").getBytes("UTF-8"));
+            for (Map.Entry<String, FileObject> jar : jars.entrySet()) {
+                md.update((jar.getKey() + Strings.COLON + digest(appId, jar.getValue()) + "\n")
+                        .getBytes("UTF-8"));
+            }
+            byte[] hash = md.digest();
+            StringBuilder name = new StringBuilder(BUNDLE_PREFIX);
+            for (int i = 0; i < 8; i++) {
+                name.append(Integer.toHexString((hash[i] >> 4) & 0xf))
+                        .append(Integer.toHexString(hash[i] & 0xf));
+            }
+            name.append(".jar");
+            File dir = bundleDirectory;
+            if (dir == null) {
+                FileObject work = getFileUtility().getWorkingDirectory(Strings.CLASS_SERVER);
+                dir = new File(work.getURL().toURI());
+            }
+            dir = new File(dir, appId);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Couldn't create " + dir);
+            }
+            File target = new File(dir, name.toString());
+            if (!target.isFile()) {
+                int entries = CodebaseBundle.build(target, jars.values(), bundleCompression);
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_BUNDLE_BUILT,
+                        new Object[]{appId, target, jars.size(), entries});
+            }
+            return VFS.getManager().toFileObject(target);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, MessageNames.CLASS_SERVER_BUNDLE_FAILED, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Share the total bandwidth out equally among the applications that
+     * have downloads going. Called whenever an application starts or stops
+     * downloading.
+     */
+    synchronized void rebalance() {
+        if (bandwidth <= 0) {
+            return;
+        }
+        int downloading = 0;
+        for (ClassServerCodebaseContext context : contexts.values()) {
+            if (context.budget.getDownloads() > 0) {
+                downloading++;
+            }
+        }
+        long share = bandwidth / Math.max(downloading, 1);
+        for (ClassServerCodebaseContext context : contexts.values()) {
+            context.budget.share(share);
+        }
+    }
+
+    /**
+     * Read an integer setting from the class server properties, using the
+     * default if it isn't there.
+     */
+    static int intProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Parse % HEX HEX from s starting at i
+     */
+    private static char decode(String s, int i) {
+        return (char) Integer.parseInt(s.substring(i + 1, i + 3), 16);
+    }
+
+    /**
+     * Decode escape sequences
+     */
+    private static String decode(String path) {
+        try {
+            for (int i = path.indexOf('%');
+                    i >= 0;
+                    i = path.indexOf('%', i + 1)) {
+                char c = decode(path, i);
+                int n = 3;
+                if ((c & 0x80) != 0) {
+                    switch (c >> 4) {
+                        case 0xC:
+                        case 0xD:
+                            n = 6;
+                            c = (char) (((c & 0x1F) << 6)
+                                    | (decode(path, i + 3) & 0x3F));
+                            break;
+                        case 0xE:
+                            n = 9;
+                            c = (char) (((c & 0x0f) << 12)
+                                    | ((decode(path, i + 3) & 0x3F) << 6)
+                                    | (decode(path, i + 6) & 0x3F));
+                            break;
+                        default:
+                            return null;
+                    }
+                }
+                path = path.substring(0, i) + c + path.substring(i + n);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * Canonicalize the path
+     */
+    private String canon(String path) {
+        if (path.regionMatches(true, 0, "http://", 0, 7)) {
+            int i = path.indexOf('/', 7);
+            if (i < 0) {
+                path = "/";
+            } else {
+                path = path.substring(i);
+            }
+        }
+        path = decode(path);
+        if (path == null || path.length() == 0 || path.charAt(0) != '/') {
+            return null;
+        }
+        return path.substring(1);
+    }
+
+    /**
+     * Local file behind the FileObject, or null if the content isn't on the
+     * local disk (e.g. an entry inside a jar file).
+     */
+    static File localFile(FileObject fo) {
+        try {
+            if (!Strings.FILE.equals(fo.getName().getScheme())) {
+                return null;
+            }
+            File file = new File(fo.getURL().toURI());
+            return file.isFile() ? file : null;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Build the response that serves the given file. Content that fits in
+     * the cache is served from there; otherwise local files are sent with
+     * transferTo() and anything else is streamed.
+     */
+    private CodebaseResponse serve(CodebaseRequest req, String key, FileObject fo,
+            boolean get, boolean immutable) throws IOException {
+        String etag = '"' + digests.get(key, fo) + '"';
+        long lastModified = lastModified(fo);
+        StringBuilder validators = new StringBuilder(160);
+        /* The gzip copy, if there is one and the client takes it, is a
+         different representation so it gets its own ETag. */
+        ByteBuffer gzipped = compression && acceptsGzip(req)
+                ? cache.peek(key + GZIP_SUFFIX, fo) : null;
+        if (gzipped != null) {
+            etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            validators.append("Content-Encoding: gzip\r\n");
+        }
+        if (compression) {
+            validators.append("Vary: Accept-Encoding\r\n");
+        }
+        validators.append("ETag: ").append(etag).append("\r\n");
+        if (lastModified > 0) {
+            validators.append("Last-Modified: ").append(formatDate(lastModified)).append("\r\n");
+        }
+        if (immutable) {
+            validators.append("Cache-Control: ").append(IMMUTABLE_CACHE_CONTROL).append("\r\n");
+        } else if (cacheControl.length() > 0) {
+            validators.append("Cache-Control: ").append(cacheControl).append("\r\n");
+        }
+        validators.append("Accept-Ranges: bytes\r\n");
+        String headers = validators.toString();
+        if (notModified(req, etag, lastModified)) {
+            return response(req, "304 Not Modified", -1, true, headers);
+        }
+        ByteBuffer content = gzipped != null ? gzipped : cache.get(key, fo);
+        if (content == null && get) {
+            long length = fo.getContent().getSize();
+            if (cache.accepts(length)) {
+                content = cache.load(key, fo, length);
+            }
+        }
+        File file = content == null ? localFile(fo) : null;
+        long length = content != null ? content.remaining()
+                : file != null ? file.length() : fo.getContent().getSize();
+        List<long[]> ranges = get ? ranges(req, etag, lastModified, length) : null;
+        if (ranges == null) {
+            CodebaseResponse response = ok(req, length, headers);
+            if (get) {
+                body(response, fo, content, file, 0, length);
+                if (gzipped != null) {
+                    compressionStats(key).served(key.substring(key.indexOf('/') + 1));
+                }
+            }
+            return response;
+        }
+        if (ranges.isEmpty()) {
+            return response(req, "416 Requested Range Not Satisfiable", 0, true,
+                    "Content-Range: bytes */" + length + "\r\n");
+        }
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            CodebaseResponse response = response(req, "206 Partial Content",
+                    range[1] - range[0] + 1, true,
+                    "Content-Type: application/java\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n"
+                    + headers);
+            body(response, fo, content, file, range[0], range[1] - range[0] + 1);
+            return response;
+        }
+        /* Several ranges go out as multipart/byteranges, each part with its
+         own little header. */
+        ByteBuffer[] partHeads = new ByteBuffer[ranges.size()];
+        long total = 0;
+        for (int i = 0; i < partHeads.length; i++) {
+            long[] range = ranges.get(i);
+            partHeads[i] = ascii("\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+                    + "Content-Type: application/java\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length
+                    + "\r\n\r\n");
+            total += partHeads[i].remaining() + range[1] - range[0] + 1;
+        }
+        ByteBuffer tail = ascii("\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+        total += tail.remaining();
+        CodebaseResponse response = response(req, "206 Partial Content", total, true,
+                "Content-Type: multipart/byteranges; boundary=" + MULTIPART_BOUNDARY + "\r\n"
+                + headers);
+        for (int i = 0; i < partHeads.length; i++) {
+            long[] range = ranges.get(i);
+            response.body(partHeads[i]);
+            body(response, fo, content, file, range[0], range[1] - range[0] + 1);
+        }
+        response.body(tail);
+        return response;
+    }
+
+    /**
+     * Build the response that serves one entry out of a jar. The entry is
+     * found through the jar's central-directory index, which is read the
+     * first time an entry is asked for and kept until the mapping changes,
+     * and then read (and inflated) on its own.
+     */
+    private CodebaseResponse serveEntry(CodebaseRequest req, String key, FileObject fo,
+            boolean get, String name) throws IOException {
+        File file = localFile(fo);
+        FileChannel channel = file != null ? new FileInputStream(file).getChannel() : null;
+        try {
+            ByteBuffer content = null;
+            JarIndex jar = jarIndexes.get(key, fo);
+            if (jar == null) {
+                if (channel == null) {
+                    content = jarContent(key, fo);
+                }
+                jar = channel != null ? JarIndex.read(channel) : JarIndex.read(content);
+                jarIndexes.put(key, fo, jar);
+            }
+            JarIndex.Entry entry = jar.get(name);
+            if (entry == null) {
+                return notFound(req, key + "!/" + name);
+            }
+            /* The entry's CRC and size identify its content well enough, and
+             don't change when some other entry in the jar does. */
+            String etag = '"' + Long.toHexString(entry.crc) + '-' + entry.size + '"';
+            long lastModified = lastModified(fo);
+            StringBuilder headers = new StringBuilder(160);
+            headers.append("Content-Type: ").append(name.endsWith(".class")
+                    ? "application/java-vm" : "application/octet-stream").append("\r\n");
+            headers.append("ETag: ").append(etag).append("\r\n");
+            if (lastModified > 0) {
+                headers.append("Last-Modified: ").append(formatDate(lastModified)).append("\r\n");
+            }
+            if (cacheControl.length() > 0) {
+                headers.append("Cache-Control: ").append(cacheControl).append("\r\n");
+            }
+            if (notModified(req, etag, lastModified)) {
+                return response(req, "304 Not Modified", -1, true, headers.toString());
+            }
+            CodebaseResponse response = response(req, "200 OK", entry.size, true,
+                    headers.toString());
+            if (get) {
+                if (channel == null && content == null) {
+                    content = jarContent(key, fo);
+                }
+                response.body(ByteBuffer.wrap(channel != null
+                        ? JarIndex.content(entry, channel)
+                        : JarIndex.content(entry, content)));
+            }
+            return response;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * The packages in a jar, for the merged index of its context. Anything
+     * that can't be read as a jar has none.
+     */
+    static List<String> packages(FileObject fo) {
+        try {
+            File file = localFile(fo);
+            if (file == null) {
+                return JarIndex.read(readFully(fo)).packages();
+            }
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                return JarIndex.read(channel).packages();
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Serve the context's merged package index.
+     */
+    private CodebaseResponse serveIndexList(CodebaseRequest req,
+            ClassServerCodebaseContext context, boolean get) throws IOException {
+        byte[] indexList = context.getIndexList();
+        CRC32 crc = new CRC32();
+        crc.update(indexList);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + '-' + indexList.length + '"';
+        StringBuilder headers = new StringBuilder(128);
+        headers.append("Content-Type: text/plain; charset=UTF-8\r\n");
+        headers.append("ETag: ").append(etag).append("\r\n");
+        if (cacheControl.length() > 0) {
+            headers.append("Cache-Control: ").append(cacheControl).append("\r\n");
+        }
+        if (notModified(req, etag, 0)) {
+            return response(req, "304 Not Modified", -1, true, headers.toString());
+        }
+        CodebaseResponse response = response(req, "200 OK", indexList.length, true,
+                headers.toString());
+        if (get) {
+            response.body(ByteBuffer.wrap(indexList).asReadOnlyBuffer());
+        }
+        return response;
+    }
+
+    /**
+     * The whole content of a jar that isn't a local file, from the cache if
+     * it will fit there, otherwise read for just this request.
+     */
+    private ByteBuffer jarContent(String key, FileObject fo) throws IOException {
+        ByteBuffer content = cache.get(key, fo);
+        if (content != null) {
+            return content;
+        }
+        long length = fo.getContent().getSize();
+        if (cache.accepts(length)) {
+            return cache.load(key, fo, length);
+        }
+        return readFully(fo);
+    }
+
+    private static ByteBuffer readFully(FileObject fo) throws IOException {
+        InputStream in = fo.getContent().getInputStream();
+        try {
+            byte[] bytes = new byte[(int) fo.getContent().getSize()];
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            return ByteBuffer.wrap(bytes, 0, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether the client's Accept-Encoding allows gzip.
+     */
+    static boolean acceptsGzip(CodebaseRequest req) {
+        String accept = req.header(CodebaseRequest.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add part of the content to the response body, from wherever the content
+     * lives: the cache, a local file or the FileObject's stream.
+     */
+    private static void body(CodebaseResponse response, FileObject fo, ByteBuffer content,
+            File file, long start, long count) throws IOException {
+        if (content != null) {
+            ByteBuffer part = content.duplicate();
+            part.position(part.position() + (int) start);
+            part.limit(part.position() + (int) count);
+            response.body(part);
+        } else if (file != null) {
+            response.body(new FileInputStream(file).getChannel(), start, count);
+        } else {
+            response.body(fo.getContent().getInputStream(), start, count);
+        }
+    }
+
+    /**
+     * Work out which byte ranges the client asked for.
+     *
+     * @return The ranges as {first, last} pairs; an empty list if none of
+     * them can be satisfied; or null if the whole content should be sent
+     * (no Range header, one we don't understand, or an If-Range that no
+     * longer matches).
+     */
+    static List<long[]> ranges(CodebaseRequest req, String etag, long lastModified, long length) {
+        String range = req.header(CodebaseRequest.RANGE);
+        if (range == null || !range.startsWith("bytes=")) {
+            return null;
+        }
+        String ifRange = req.header(CodebaseRequest.IF_RANGE);
+        if (ifRange != null) {
+            boolean current = ifRange.startsWith("\"")
+                    ? ifRange.equals(etag)
+                    : lastModified > 0 && parseDate(ifRange) / 1000 == lastModified / 1000;
+            if (!current) {
+                return null;
+            }
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long first, last;
+                if (dash == 0) {
+                    // Suffix range: the last n bytes.
+                    long n = Long.parseLong(spec.substring(1));
+                    if (n == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - n);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    String end = spec.substring(dash + 1);
+                    if (end.length() == 0) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(end);
+                        if (last < first) {
+                            // Not a valid range; ignore the whole header.
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new long[]{first, last});
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Whether the path segment is a SHA-256 in lower-case hex.
+     */
+    static boolean isDigest(String segment) {
+        if (segment.length() != DIGEST_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (!isHex(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigest(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isHex((char) buf[i])) {
+                return false;
+            }
+        }
+        return end - start == DIGEST_LENGTH;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    /**
+     * The digest of a jar in one of our contexts, as used in content-addressed
+     * URLs.
+     */
+    String digest(String appId, FileObject fo) throws IOException {
+        return digests.get(appId + Strings.SLASH + fo.getName().getBaseName(), fo);
+    }
+
+    /**
+     * Whether the codebase annotations should carry the jars' digests.
+     */
+    boolean isContentAddressed() {
+        return contentAddressed;
+    }
+
+    /**
+     * Whether the client's copy, described by the conditional headers, is
+     * still current. If-None-Match wins over If-Modified-Since when both are
+     * given.
+     */
+    static boolean notModified(CodebaseRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.header(CodebaseRequest.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = req.header(CodebaseRequest.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && lastModified > 0) {
+            long since = parseDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    private static long lastModified(FileObject fo) {
+        try {
+            return fo.getContent().getLastModifiedTime();
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * SimpleDateFormat isn't thread-safe and is expensive to set up, so each
+     * thread that answers requests keeps its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format = new SimpleDateFormat(
+                            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    return format;
+                }
+            };
+
+    private static SimpleDateFormat httpDateFormat() {
+        return HTTP_DATE_FORMAT.get();
+    }
+
+    /**
+     * How long (ms) a connection may wait for its next request. With
+     * keep-alive turned off, this still applies to the first request, so an
+     * idle client can't hold a connection open forever.
+     */
+    int idleTimeout() {
+        return keepAliveTimeout > 0 ? keepAliveTimeout : DEFAULT_KEEP_ALIVE_TIMEOUT;
+    }
+
+    static String formatDate(long time) {
+        return httpDateFormat().format(new Date(time));
+    }
+
+    /**
+     * Parse an HTTP date, returning -1 if it can't be read.
+     */
+    static long parseDate(String date) {
+        try {
+            return httpDateFormat().parse(date).getTime();
+        } catch (ParseException ex) {
+            return -1;
+        }
+    }
+
+    FileObject findFileObjectForPath(String path) {
+        /*
+         * First path segment is appid.
+         */
+        StringTokenizer tok = new StringTokenizer(path, Strings.SLASH, false);
+        FileObject ret = null;
+        try {
+            String appId = tok.nextToken();
+            String jarName = tok.nextToken();
+            ClassServerCodebaseContext context = contexts.get(appId);
+            ret = context.getFile(jarName);
+        } catch (Throwable t) {
+            logger.log(Level.INFO, MessageNames.CLASS_SERVER_REJECTED_PATH,
+                    path);
+        }
+        return ret;
+    }
+
+    private static ByteBuffer ascii(String s) {
+        try {
+            return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Finish off a response head with the Content-Length and whatever
+     * Connection header is needed, and wrap it up as a response.
+     *
+     * @param length Content length, or -1 for a response that never has a
+     * body (304).
+     * @param keepAlive Whether we're willing to keep the connection open.
+     * @param headers Any other header lines, each ending in CRLF.
+     */
+    private CodebaseResponse response(CodebaseRequest req, String status,
+            long length, boolean keepAlive, String headers) {
+        keepAlive = keepAlive && keepAliveTimeout > 0 && req.wantsKeepAlive();
+        StringBuilder head = new StringBuilder(128 + headers.length());
+        head.append(req.version).append(' ').append(status).append("\r\n");
+        if (length >= 0) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append(headers);
+        if (keepAlive && req.version == CodebaseRequest.HTTP_1_0) {
+            head.append("Connection: keep-alive\r\n");
+        } else if (!keepAlive && req.version == CodebaseRequest.HTTP_1_1) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        CodebaseResponse response = new CodebaseResponse(ascii(head.toString()), keepAlive);
+        response.status = (status.charAt(0) - '0') * 100
+                + (status.charAt(1) - '0') * 10 + (status.charAt(2) - '0');
+        response.method = req.method;
+        return response;
+    }
+
+    private CodebaseResponse ok(CodebaseRequest req, long length, String headers) {
+        return response(req, "200 OK", length, true,
+                "Content-Type: application/java\r\n" + headers);
+    }
+
+    private CodebaseResponse badRequest(CodebaseRequest req, InetAddress client, int clientPort) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, MessageNames.CLASS_SERVER_BAD_REQUEST,
+                    logArgs(req.requestLine(), client, clientPort));
+        }
+        return response(req, "400 Bad Request", 0, false, "");
+    }
+
+    private CodebaseResponse notFound(CodebaseRequest req, String path) {
+        logger.log(Level.FINE, MessageNames.CLASS_SERVER_NO_CONTENT_FOUND, path);
+        CodebaseResponse response = response(req, "404 Not Found", 0, true, "");
+        response.path = path;
+        return response;
+    }
+
+    /**
+     * Arguments for the request log messages. Only built when the message
+     * is actually going to be logged, since getHostName() may mean a DNS
+     * lookup.
+     */
+    private static String[] logArgs(String path, InetAddress client, int clientPort) {
+        return new String[]{path, client.getHostName(), Integer.toString(clientPort)};
+    }
+
+    /**
+     * Work out the response to a request. The caller writes it to the client
+     * and then either closes the connection or, if the response says it can
+     * be kept alive, goes on to the next request.
+     * <p>
+     * Ordinary paths ('/appId/jarName' or '/appId/&lt;sha256&gt;/jarName')
+     * are looked up in the PathIndex straight from the request bytes.
+     * Anything else (escapes, absolute URLs, extra segments) goes the long
+     * way round, through Strings.
+     *
+     * @param req The parsed request head; the caller has already called
+     * parse(), and this method's return value is ignored if it failed.
+     * @param client The client's address, for logging.
+     * @param clientPort The client's port, for logging.
+     */
+    CodebaseResponse respond(CodebaseRequest req, InetAddress client, int clientPort) {
+        long started = System.nanoTime();
+        CodebaseResponse response = answer(req, client, clientPort);
+        response.started = started;
+        return response;
+    }
+
+    private CodebaseResponse answer(CodebaseRequest req, InetAddress client, int clientPort) {
+        if (req.method == CodebaseRequest.OTHER || req.targetEnd <= req.targetStart) {
+            return badRequest(req, client, clientPort);
+        }
+        boolean get = req.method == CodebaseRequest.GET;
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER,
+                    get
+                    ? MessageNames.CLASS_SERVER_RECEIVED_REQUEST
+                    : MessageNames.CLASS_SERVER_RECEIVED_PROBE,
+                    logArgs(req.target(), client, clientPort));
+        }
+        byte[] buf = req.buf;
+        int start = req.targetStart, end = req.targetEnd;
+        PathIndex.Entry entry = null;
+        int digestStart = -1;
+        String entryName = null;
+        boolean plain = buf[start] == '/'
+                && CodebaseRequest.indexOf(buf, '%', start, end) < 0;
+        int slash1 = plain ? CodebaseRequest.indexOf(buf, '/', start + 1, end) : -1;
+        if (slash1 > start + 1) {
+            int slash2 = CodebaseRequest.indexOf(buf, '/', slash1 + 1, end);
+            if (slash2 < 0) {
+                entry = index.lookup(buf, start + 1, slash1, slash1 + 1, end);
+            } else if (slash2 - slash1 - 1 == DIGEST_LENGTH
+                    && CodebaseRequest.indexOf(buf, '/', slash2 + 1, end) < 0
+                    && isDigest(buf, slash1 + 1, slash2)) {
+                digestStart = slash1 + 1;
+                entry = index.lookup(buf, start + 1, slash1, slash2 + 1, end);
+            }
+        }
+        String key;
+        FileObject fo;
+        ClassServerCodebaseContext context;
+        if (entry != null) {
+            key = entry.key;
+            fo = entry.file;
+            context = entry.context;
+        } else {
+            /* Not found the quick way; try the slow way, which also copes
+             with escapes and absolute URLs. */
+            String path = canon(req.target());
+            if (path == null) {
+                return badRequest(req, client, clientPort);
+            }
+            /* A content-addressed path has the jar's digest between the
+             appId and the jar name. */
+            String[] segments = path.split(Strings.SLASH);
+            if (segments.length == 3 && path.endsWith(Strings.SLASH + INDEX_LIST)) {
+                ClassServerCodebaseContext indexed = contexts.get(segments[0]);
+                if (indexed != null) {
+                    CodebaseResponse response;
+                    try {
+                        response = serveIndexList(req, indexed, get);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING,
+                                MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, e);
+                        response = response(req, "500 Internal Error", 0, false, "");
+                    }
+                    response.appId = indexed.getAppId();
+                    response.path = path;
+                    return response;
+                }
+            }
+            /* A request for one entry out of a jar names the jar, then '!',
+             then the entry. */
+            int bang = entryRequests ? path.indexOf("!/") : -1;
+            if (bang > 0) {
+                entryName = path.substring(bang + 2);
+                path = path.substring(0, bang);
+            } else if (segments.length == 3 && isDigest(segments[1])) {
+                buf = segments[1].getBytes(CodebaseRequest.ISO_8859_1);
+                digestStart = 0;
+                path = segments[0] + Strings.SLASH + segments[2];
+            }
+            fo = findFileObjectForPath(path);
+            if (fo == null) {
+                return notFound(req, path);
+            }
+            String appId = path.substring(0, path.indexOf('/'));
+            key = appId + Strings.SLASH + fo.getName().getBaseName();
+            context = contexts.get(appId);
+        }
+        /* Downloads count against the application's budget from now until
+         the response is closed. */
+        AppBudget budget = null;
+        if (get && context != null && context.budget.isLimited()) {
+            budget = context.budget;
+            if (!budget.start()) {
+                return response(req, "503 Service Unavailable", 0, true,
+                        "Retry-After: " + admission.getRetryAfter() + "\r\n");
+            }
+        }
+        CodebaseResponse response;
+        if (digestStart >= 0) {
+            response = serveDigest(req, key, fo, get, buf, digestStart);
+        } else if (entryName != null) {
+            try {
+                response = serveEntry(req, key, fo, get, entryName);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, e);
+                response = response(req, "500 Internal Error", 0, false, "");
+            }
+        } else {
+            try {
+                response = serve(req, key, fo, get, false);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, e);
+                response = response(req, "500 Internal Error", 0, false, "");
+            }
+        }
+        if (budget != null) {
+            response.budget(budget);
+        }
+        if (response.path == null && context != null) {
+            response.appId = context.getAppId();
+            response.path = key;
+        }
+        return response;
+    }
+
+    /**
+     * Serve a content-addressed URL, as long as the digest in it is still
+     * the jar's digest.
+     */
+    private CodebaseResponse serveDigest(CodebaseRequest req, String key, FileObject fo,
+            boolean get, byte[] buf, int digestStart) {
+        try {
+            if (!CodebaseRequest.regionEquals(buf, digestStart, digestStart + DIGEST_LENGTH,
+                    digests.get(key, fo))) {
+                // An old URL for a jar that has since been redeployed.
+                return notFound(req, key);
+            }
+            return serve(req, key, fo, get, true);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, e);
+            return response(req, "500 Internal Error", 0, false, "");
+        }
+    }
+}
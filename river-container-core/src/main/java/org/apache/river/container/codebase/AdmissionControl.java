@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the class server takes on a new connection. There can be a
+ * cap on the connections open at once, and a smaller one on the connections
+ * from any one client address; both are off unless they're set in
+ * class-server.properties. A connection over either cap is answered straight
+ * away with '503 Service Unavailable' and a Retry-After, without reading the
+ * request or using a worker thread, so a flood of clients can't run the
+ * container out of threads or heap.
+ *
+ * @author trasukg
+ */
+class AdmissionControl {
+
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    private final int retryAfter;
+    private final byte[] rejection;
+    private int active = 0;
+    private final Map<InetAddress, int[]> perClient = new HashMap<InetAddress, int[]>();
+    private long rejected = 0;
+    private long rejectedPerClient = 0;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param maxConnections Most connections open at once; 0 for no limit.
+     * @param maxConnectionsPerClient Most connections open at once from one
+     * client address; 0 for no limit.
+     * @param retryAfter Seconds a rejected client is told to wait.
+     */
+    AdmissionControl(int maxConnections, int maxConnectionsPerClient, int retryAfter) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.retryAfter = retryAfter;
+        rejection = CodebaseRequest.ascii("HTTP/1.0 503 Service Unavailable\r\n"
+                + "Retry-After: " + retryAfter + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n\r\n");
+    }
+
+    /**
+     * Take on a newly accepted connection if it's within the limits. Every
+     * connection that's admitted must be released when it closes.
+     */
+    synchronized boolean admit(InetAddress client) {
+        if (maxConnections > 0 && active >= maxConnections) {
+            rejected++;
+            return false;
+        }
+        int[] count = perClient.get(client);
+        if (maxConnectionsPerClient > 0 && count != null
+                && count[0] >= maxConnectionsPerClient) {
+            rejectedPerClient++;
+            return false;
+        }
+        if (count == null) {
+            count = new int[1];
+            perClient.put(client, count);
+        }
+        count[0]++;
+        active++;
+        return true;
+    }
+
+    synchronized void release(InetAddress client) {
+        int[] count = perClient.get(client);
+        if (count == null) {
+            return;
+        }
+        active--;
+        if (--count[0] == 0) {
+            perClient.remove(client);
+        }
+    }
+
+    /**
+     * The 503 response, for a server that sends it through its own writes.
+     */
+    ByteBuffer rejection() {
+        return ByteBuffer.wrap(rejection).asReadOnlyBuffer();
+    }
+
+    /**
+     * Send the 503 and close the connection. Once the answer is out, whatever
+     * part of the request has already arrived is thrown away, so that closing
+     * the socket doesn't reset the connection before the client has read the
+     * answer.
+     */
+    void reject(Socket sock) {
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(rejection);
+            out.flush();
+            sock.shutdownOutput();
+            InputStream in = sock.getInputStream();
+            in.skip(in.available());
+        } catch (IOException e) {
+            // The client will just have to try again.
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * An admitted connection is waiting for a worker or I/O thread.
+     */
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * A worker or I/O thread has picked the connection up.
+     */
+    void dequeued() {
+        queued.decrementAndGet();
+    }
+
+    int getRetryAfter() {
+        return retryAfter;
+    }
+
+    int getQueueDepth() {
+        return queued.get();
+    }
+
+    synchronized int getActive() {
+        return active;
+    }
+
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    synchronized long getRejectedPerClient() {
+        return rejectedPerClient;
+    }
+}
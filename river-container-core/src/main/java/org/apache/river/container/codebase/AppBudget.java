@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+/**
+ * One application's share of the class server: an optional cap on its
+ * bandwidth and on the downloads it may have going at once. While the server
+ * has a total bandwidth set, each application that is downloading also gets
+ * an equal share of that total, so one busy application can't starve the
+ * others.
+ *
+ * @author trasukg
+ */
+class AppBudget {
+
+    private final AbstractClassServer server;
+    private long bandwidth;
+    private int maxDownloads;
+    private int downloads = 0;
+    private long rejected = 0;
+    final TokenBucket bucket = new TokenBucket();
+
+    /**
+     * @param bandwidth Bytes per second for the application; 0 for no limit
+     * of its own.
+     * @param maxDownloads Most downloads at once; 0 for no limit.
+     */
+    AppBudget(AbstractClassServer server, long bandwidth, int maxDownloads) {
+        this.server = server;
+        this.bandwidth = bandwidth;
+        this.maxDownloads = maxDownloads;
+        bucket.setRate(bandwidth);
+    }
+
+    synchronized void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+        bucket.setRate(bandwidth);
+    }
+
+    synchronized void setMaxDownloads(int maxDownloads) {
+        this.maxDownloads = maxDownloads;
+    }
+
+    /**
+     * Whether downloads need to go through the budget at all.
+     */
+    synchronized boolean isLimited() {
+        return bandwidth > 0 || maxDownloads > 0 || server.bandwidth > 0;
+    }
+
+    /**
+     * Start a download, if the application has a download to spare.
+     */
+    boolean start() {
+        boolean first;
+        synchronized (this) {
+            if (maxDownloads > 0 && downloads >= maxDownloads) {
+                rejected++;
+                return false;
+            }
+            first = downloads++ == 0;
+        }
+        if (first) {
+            server.rebalance();
+        }
+        return true;
+    }
+
+    void finish() {
+        boolean last;
+        synchronized (this) {
+            last = --downloads == 0;
+        }
+        if (last) {
+            server.rebalance();
+        }
+    }
+
+    synchronized int getDownloads() {
+        return downloads;
+    }
+
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Set the application's share of the server's total bandwidth; the
+     * bucket runs at that or the application's own limit, whichever is
+     * lower.
+     *
+     * @param share Bytes per second; 0 for no share limit.
+     */
+    synchronized void share(long share) {
+        long rate = bandwidth;
+        if (share > 0 && (rate <= 0 || share < rate)) {
+            rate = share;
+        }
+        bucket.setRate(rate);
+    }
+}
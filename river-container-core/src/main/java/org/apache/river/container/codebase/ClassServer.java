@@ -21,25 +21,20 @@
 package org.apache.river.container.codebase;
 
 import com.sun.jini.logging.Levels;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.ResourceBundle;
-import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.vfs2.FileObject;
 import org.apache.river.container.Init;
+import org.apache.river.container.FileUtility;
 import org.apache.river.container.Injected;
 import org.apache.river.container.InjectionStyle;
-import org.apache.river.container.LocalizedRuntimeException;
 import org.apache.river.container.MessageNames;
 import org.apache.river.container.Shutdown;
 import org.apache.river.container.work.WorkManager;
@@ -71,62 +66,62 @@ import org.apache.river.container.work.WorkManager;
  *
  *
  */
-public class ClassServer implements CodebaseHandler {
+public class ClassServer extends AbstractClassServer {
 
     private static final Logger logger =
             Logger.getLogger(ClassServer.class.getName(), MessageNames.BUNDLE_NAME);
+    private static final int DEFAULT_ACCEPT_THREADS = 1;
     /**
-     * Server socket to accept connections on
+     * Server sockets to accept connections on; one for each of the
+     * 'listenAddresses', all on the same port.
      */
-    private ServerSocket server;
+    private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
     @Injected(style = InjectionStyle.BY_TYPE)
-    private WorkManager workManager = null;
+    WorkManager workManager = null;
     @Injected(Strings.CLASS_SERVER_PROPERTIES)
-    private Properties properties;
-    Map<String, ClassServerCodebaseContext> contexts =
-            new HashMap<String, ClassServerCodebaseContext>();
+    Properties properties;
+    @Injected(style = InjectionStyle.BY_TYPE)
+    FileUtility fileUtility = null;
 
     @Init
     public void init() {
+        configure(properties);
+        scheduleHostRefresh();
         try {
-            establishServerSocket();
-            workManager.queueTask(Thread.currentThread().getContextClassLoader(),
-                    new Runnable() {
+            establishServerSockets();
+            int acceptThreads = intProperty(properties, Strings.ACCEPT_THREADS,
+                    DEFAULT_ACCEPT_THREADS);
+            for (final ServerSocket server : servers) {
+                final ListenerStats stats = listenerStats(server);
+                for (int i = 0; i < acceptThreads; i++) {
+                    workManager.queueTask(Thread.currentThread().getContextClassLoader(),
+                            new Runnable() {
 
-                        @Override
-                        public void run() {
-                            ClassServer.this.run();
-                        }
-                    });
+                                @Override
+                                public void run() {
+                                    ClassServer.this.run(server, stats);
+                                }
+                            });
+                }
+            }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, MessageNames.CLASS_SERVER_INIT_FAILED, ex);
             throw new RuntimeException(ex);
         }
     }
 
-    private void establishServerSocket() throws IOException, SocketException {
-        server = new ServerSocket();
-        server.setReuseAddress(true);
-        String initialPortStr = properties.getProperty(Strings.INITIAL_PORT);
-        if (initialPortStr == null) {
-            throw new LocalizedRuntimeException(
-                    MessageNames.BUNDLE_NAME,
-                    MessageNames.MISSING_PROPERTY_ENTRY,
-                    new Object[]{
-                        Strings.CLASS_SERVER_PROPERTIES,
-                        Strings.INITIAL_PORT
-                    });
-        }
-        int initialPort = Integer.parseInt(initialPortStr);
-        for(int port=initialPort; port<initialPort+100 ;port++)
-        try {
-            server.bind(new InetSocketAddress(port));
-            logger.log(Level.INFO, MessageNames.CLASS_SERVER_ESTABLISHED,
-                    new Object[]{server.getLocalSocketAddress(),
-                        server.getLocalPort()});
-            break;
-        } catch (BindException be) {
-            logger.log(Level.FINE, MessageNames.PORT_IN_USE, new Integer[] {port});
+    private void establishServerSockets() throws IOException, SocketException {
+        for (InetAddress address : listenAddresses(properties)) {
+            /* Take the socket from a channel so that the accepted sockets have
+             channels too; that lets local files go out through transferTo(). */
+            ServerSocket server = ServerSocketChannel.open().socket();
+            server.setReuseAddress(true);
+            servers.add(server);
+            if (servers.size() == 1) {
+                bindToFirstFreePort(server, address, properties);
+            } else {
+                bind(server, address, getPort());
+            }
         }
     }
 
@@ -136,11 +131,22 @@ public class ClassServer implements CodebaseHandler {
      * rather than setup a loop. Wonder what the ramifications would be? We'd
      * have more opportunities to end the service task, but possibly more
      * development effort.
+     * <p>
+     * With 'acceptThreads' above 1, several of these loops wait in accept()
+     * on the same socket, and the kernel hands each connection to one of
+     * them.
      */
-    public void run() {
+    private void run(ServerSocket server, ListenerStats stats) {
         try {
             while (true) {
                 final Socket connectedSocket = server.accept();
+                stats.accepted();
+                if (!admission.admit(connectedSocket.getInetAddress())) {
+                    admission.reject(connectedSocket);
+                    continue;
+                }
+                admission.queued();
+                final ListenerStats connectionStats = stats;
                 /*
                  * Boy, would this be a nice spot to have closures!
                  */
@@ -150,7 +156,7 @@ public class ClassServer implements CodebaseHandler {
 
                             @Override
                             public void run() {
-                                processRequest(connectedSocket);
+                                processConnection(connectedSocket, connectionStats);
                             }
                         });
             }
@@ -158,300 +164,108 @@ public class ClassServer implements CodebaseHandler {
             synchronized (this) {
                 if (!server.isClosed()) {
                     logger.log(Level.SEVERE, MessageNames.CLASS_SERVER_ERROR_ACCEPTING_CONNECTIONS, e);
+                    terminate();
                 }
-                terminate();
             }
         }
     }
 
     /**
-     * Close the server socket, causing the thread to terminate.
+     * Close the server sockets, causing the threads to terminate.
      */
     @Shutdown
     public synchronized void terminate() {
-        try {
-            server.close();
-        } catch (IOException e) {
-            logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_DURING_SHUTDOWN, e);
-        }
-        logger.log(Level.INFO, MessageNames.CLASS_SERVER_TERMINATED,
-                new Object[]{server.getLocalSocketAddress(),
-                    server.getLocalPort()});
-    }
-
-    /**
-     * Returns the port on which this server is listening.
-     */
-    public int getPort() {
-        return server.getLocalPort();
-    }
-
-    /**
-     * Returns the hostname that the server is listening to.
-     *
-     * @return
-     */
-    public String getHost() throws UnknownHostException {
-        return InetAddress.getLocalHost().getCanonicalHostName();
-    }
-
-    /**
-     * Read up to CRLF, return false if EOF
-     */
-    private static boolean readLine(InputStream in, StringBuffer buf)
-            throws IOException {
-        while (true) {
-            int c = in.read();
-            if (c < 0) {
-                return buf.length() > 0;
-            }
-            /*
-             * The characters below are part of the http protocol and not
-             * localizable, so we're OK with character literals.
-             */
-            if (c == '\r') {
-                in.mark(1);
-                c = in.read();
-                if (c != '\n') {
-                    in.reset();
-                }
-                return true;
-            }
-            if (c == '\n') {
-                return true;
+        stopHostRefresh();
+        for (ServerSocket server : servers) {
+            if (server.isClosed()) {
+                continue;
             }
-            buf.append((char) c);
-        }
-    }
-
-    /**
-     * Parse % HEX HEX from s starting at i
-     */
-    private static char decode(String s, int i) {
-        return (char) Integer.parseInt(s.substring(i + 1, i + 3), 16);
-    }
-
-    /**
-     * Decode escape sequences
-     */
-    private static String decode(String path) {
-        try {
-            for (int i = path.indexOf('%');
-                    i >= 0;
-                    i = path.indexOf('%', i + 1)) {
-                char c = decode(path, i);
-                int n = 3;
-                if ((c & 0x80) != 0) {
-                    switch (c >> 4) {
-                        case 0xC:
-                        case 0xD:
-                            n = 6;
-                            c = (char) (((c & 0x1F) << 6)
-                                    | (decode(path, i + 3) & 0x3F));
-                            break;
-                        case 0xE:
-                            n = 9;
-                            c = (char) (((c & 0x0f) << 12)
-                                    | ((decode(path, i + 3) & 0x3F) << 6)
-                                    | (decode(path, i + 6) & 0x3F));
-                            break;
-                        default:
-                            return null;
-                    }
-                }
-                path = path.substring(0, i) + c + path.substring(i + n);
+            try {
+                server.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_DURING_SHUTDOWN, e);
             }
-        } catch (Exception e) {
-            return null;
+            logger.log(Level.INFO, MessageNames.CLASS_SERVER_TERMINATED,
+                    new Object[]{server.getLocalSocketAddress(),
+                        server.getLocalPort()});
         }
-        return path;
-    }
-
-    /**
-     * Read the request/response and return the initial line.
-     */
-    private static String getInput(Socket sock, boolean isRequest)
-            throws IOException {
-        BufferedInputStream in =
-                new BufferedInputStream(sock.getInputStream(), 256);
-        StringBuffer buf = new StringBuffer(80);
-        do {
-            if (!readLine(in, buf)) {
-                return null;
-            }
-        } while (isRequest && buf.length() == 0);
-        String initial = buf.toString();
-        do {
-            buf.setLength(0);
-        } while (readLine(in, buf) && buf.length() > 0);
-        return initial;
     }
 
     @Override
-    public CodebaseContext createContext(String appId) {
-        // Create a context
-        ClassServerCodebaseContext context = new ClassServerCodebaseContext(this, appId);
-        // Assign a context prefix (url-shortened)
-        contexts.put(appId, context);
-        return context;
+    WorkManager getWorkManager() {
+        return workManager;
     }
 
     @Override
-    public void destroyContext(CodebaseContext context) {
-        // Remove all the jar mappings.
-        //destroy the context.
-        contexts.remove(context.getAppId());
-    }
-    private static ResourceBundle resources;
-    private static boolean resinit = false;
-
-    /**
-     * Canonicalize the path
-     */
-    private String canon(String path) {
-        if (path.regionMatches(true, 0, "http://", 0, 7)) {
-            int i = path.indexOf('/', 7);
-            if (i < 0) {
-                path = "/";
-            } else {
-                path = path.substring(i);
-            }
-        }
-        path = decode(path);
-        if (path == null || path.length() == 0 || path.charAt(0) != '/') {
-            return null;
-        }
-        return path.substring(1);
-    }
-
-    private String parsePathFromRequest(String req, boolean get) {
-        String path = req.substring(get ? 4 : 5);
-        int i = path.indexOf(' ');
-        if (i > 0) {
-            path = path.substring(0, i);
-        }
-        path = canon(path);
-        return path;
-    }
-
-    private boolean processBadRequest(String[] args, DataOutputStream out) throws IOException {
-        logger.log(Level.FINE, MessageNames.CLASS_SERVER_BAD_REQUEST,
-                args);
-        out.writeBytes("HTTP/1.0 400 Bad Request\r\n\r\n");
-        out.flush();
-        return true;
+    FileUtility getFileUtility() {
+        return fileUtility;
     }
 
     /**
-     * Read specified number of bytes and always close the stream.
+     * Returns the port on which this server is listening.
      */
-    private byte[] getBytes(FileObject fo)
-            throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-
-        InputStream in = fo.getContent().getInputStream();
-        int bytesRead = in.read(buffer);
-        while (bytesRead > 0) {
-            out.write(buffer, 0, bytesRead);
-            bytesRead = in.read(buffer);
-        }
-        byte[] bytes = out.toByteArray();
-        out.close();
-        in.close();
-        return bytes;
+    @Override
+    public int getPort() {
+        return servers.get(0).getLocalPort();
     }
 
     /**
-     * Return the bytes of the requested file, or null if not found.
+     * Answer requests on the connection until the client closes it, asks us
+     * to close it, or leaves it idle for longer than the keep-alive timeout.
+     * Pipelined requests just sit in the input buffer until we get to them.
      */
-    private byte[] getBytes(String path) throws IOException {
-        FileObject fo = findFileObjectForPath(path);
-        if (fo == null) {
-            return null;
-        }
-        return getBytes(fo);
-    }
-
-    FileObject findFileObjectForPath(String path) {
-        /*
-         * First path segment is appid.
-         */
-        StringTokenizer tok = new StringTokenizer(path, Strings.SLASH, false);
-        FileObject ret = null;
-        try {
-            String appId = tok.nextToken();
-            String jarName = tok.nextToken();
-            ClassServerCodebaseContext context = contexts.get(appId);
-            ret = context.fileEntries.get(jarName);
-        } catch (Throwable t) {
-            logger.log(Level.INFO, MessageNames.CLASS_SERVER_REJECTED_PATH,
-                    path);
-        }
-        return ret;
-    }
-
-    private void writeHeader(DataOutputStream out, byte[] bytes) throws IOException {
-        out.writeBytes("HTTP/1.0 200 OK\r\n");
-        out.writeBytes("Content-Length: " + bytes.length + "\r\n");
-        out.writeBytes("Content-Type: application/java\r\n\r\n");
-    }
-
-    private boolean processRequest(Socket sock) {
+    private void processConnection(Socket sock, ListenerStats stats) {
+        admission.dequeued();
         try {
-            DataOutputStream out =
-                    new DataOutputStream(sock.getOutputStream());
-            String req;
-            try {
-                req = getInput(sock, true);
-            } catch (Exception e) {
-                logger.log(Level.FINE, "reading request", e);
-                return true;
-            }
-            if (req == null) {
-                return true;
-            }
-            String[] args = new String[3];
-            boolean get = req.startsWith("GET ");
-            if (!get && !req.startsWith("HEAD ")) {
-                processBadRequest(args, out);
-            }
-            String path = parsePathFromRequest(req, get);
-            if (path == null) {
-                return processBadRequest(args, out);
-            }
-            if (args != null) {
-                args[0] = path;
-            }
-            args[1] = sock.getInetAddress().getHostName();
-            args[2] = Integer.toString(sock.getPort());
-
-            logger.log(Level.FINER,
-                    get
-                    ? MessageNames.CLASS_SERVER_RECEIVED_REQUEST
-                    : MessageNames.CLASS_SERVER_RECEIVED_PROBE,
-                    args);
-            byte[] bytes;
-            try {
-                bytes = getBytes(path);
-            } catch (Exception e) {
-                logger.log(Level.WARNING, MessageNames.CLASS_SERVER_EXCEPTION_GETTING_BYTES, e);
-                out.writeBytes("HTTP/1.0 500 Internal Error\r\n\r\n");
-                out.flush();
-                return true;
-            }
-            if (bytes == null) {
-                logger.log(Level.FINE, MessageNames.CLASS_SERVER_NO_CONTENT_FOUND, path);
-                out.writeBytes("HTTP/1.0 404 Not Found\r\n\r\n");
-                out.flush();
-                return true;
-            }
-            writeHeader(out, bytes);
-            if (get) {
-                out.write(bytes);
+            sock.setSoTimeout(idleTimeout());
+            /* A body straight from a file still follows the head in a write
+             of its own; don't let Nagle hold it back waiting for the
+             client's delayed ACK. */
+            sock.setTcpNoDelay(true);
+            InputStream in = sock.getInputStream();
+            WritableByteChannel out = sock.getChannel();
+            byte[] buf = new byte[MAX_REQUEST_SIZE];
+            int filled = 0;
+            CodebaseRequest request = new CodebaseRequest();
+            for (;;) {
+                int end;
+                while ((end = headEnd(buf, filled)) < 0 && filled < buf.length) {
+                    int n;
+                    try {
+                        n = in.read(buf, filled, buf.length - filled);
+                    } catch (SocketTimeoutException e) {
+                        return;
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_READING_REQUEST, e);
+                        return;
+                    }
+                    if (n < 0) {
+                        return;
+                    }
+                    filled += n;
+                }
+                /* A full buffer without a complete head parses as nothing
+                 at all, which earns a 400. */
+                end = Math.max(end, 0);
+                request.parse(buf, 0, end);
+                CodebaseResponse response =
+                        respond(request, sock.getInetAddress(), sock.getPort());
+                // Move any pipelined requests down to the start.
+                System.arraycopy(buf, end, buf, 0, filled - end);
+                filled -= end;
+                try {
+                    while (!response.writeTo(out)) {
+                        // Only a budget stops a blocking write early.
+                        Thread.sleep(response.throttledFor());
+                    }
+                    completed(response, sock.getInetAddress(), stats);
+                } finally {
+                    response.close();
+                }
+                if (!response.keepAlive()) {
+                    return;
+                }
             }
-            out.flush();
-            return false;
         } catch (Exception e) {
             logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_WRITING_RESPONSE, e);
         } finally {
@@ -459,7 +273,7 @@ public class ClassServer implements CodebaseHandler {
                 sock.close();
             } catch (IOException e) {
             }
+            admission.release(sock.getInetAddress());
         }
-        return false;
     }
 }
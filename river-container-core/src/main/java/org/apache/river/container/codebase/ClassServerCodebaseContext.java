@@ -17,27 +17,171 @@
  */
 package org.apache.river.container.codebase;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.vfs2.FileObject;
 
 /**
+ * The jars that one application exports through the class server.
+ * <p>
+ * Request threads look jars up on every download while the deployer may be
+ * adding them, so the jar table is copy-on-write: addFile() builds a new
+ * table and publishes it through a volatile field. Readers never lock and
+ * always see a complete table. The jars stay in the order they were added, so
+ * the codebase annotation always lists them in the same order. It's worked
+ * out once per table (and again if the server's host name changes) and
+ * kept with it.
+ * <p>
+ * The jars' packages are merged into a JarIndex style package index (served
+ * as 'appId/META-INF/INDEX.LIST') so that a client can tell which of the jars
+ * in the annotation holds a class without opening them all. Each jar is only
+ * read for its packages when the index is first asked for, and what was found
+ * is carried over to later tables until that jar changes, so an application
+ * whose clients never ask for the index never pays for it.
+ * <p>
+ * In bundled mode the application's own jars are merged into a single bundle
+ * jar when the annotation is first asked for (that is, when the application
+ * is being prepared), and the annotation has the bundle's URL in place of
+ * theirs. The bundle is built without holding the context's lock, so jars can
+ * be added and other annotation requests answered meanwhile. Shared platform
+ * jars stay out of the bundle and keep their own entries in the annotation,
+ * so every application's clients still download them only once. The separate
+ * jars are still served.
+ * <p>
+ * Jars added with addPlatformFile() are served once for all the
+ * applications, from the server's shared '/platform/' namespace, and the
+ * annotation points there for them.
  *
  * @author trasukg
  */
 public class ClassServerCodebaseContext implements CodebaseContext {
-    ClassServer classServer=null;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    AbstractClassServer classServer=null;
     
     String appId = null;
-    Map<String, FileObject> fileEntries=new HashMap<String, FileObject>();
+    private volatile Snapshot snapshot =
+            new Snapshot(Collections.<String, FileObject>emptyMap(),
+                    Collections.<String, List<String>>emptyMap(),
+                    Collections.<String>emptySet(), null);
+    private volatile boolean bundled;
+
+    /**
+     * One published version of the jar table.
+     */
+    private static class Snapshot {
+
+        final Map<String, FileObject> fileEntries;
+        /**
+         * The packages in each jar, by jar name, for the jars that have been
+         * listed so far.
+         */
+        final Map<String, List<String>> packages;
+        /**
+         * Names of the jars that are served from the platform namespace.
+         */
+        final Set<String> shared;
+        /**
+         * Name of the bundle jar in fileEntries, or null if the jars
+         * haven't been bundled.
+         */
+        final String bundleName;
+        volatile URL[] codebaseAnnotation = null;
+        volatile byte[] indexList = null;
+        /**
+         * Set once we've tried to bundle this table's jars.
+         */
+        boolean bundleTried = false;
+
+        Snapshot(Map<String, FileObject> fileEntries, Map<String, List<String>> packages,
+                Set<String> shared, String bundleName) {
+            this.fileEntries = fileEntries;
+            this.packages = new ConcurrentHashMap<String, List<String>>(packages);
+            this.shared = shared;
+            this.bundleName = bundleName;
+        }
+
+        /**
+         * The jars that go in the annotation: all of them, or if there's a
+         * bundle, the bundle in place of the application's own jars, with the
+         * shared ones where they were.
+         */
+        Map<String, FileObject> exported() {
+            if (bundleName == null) {
+                return fileEntries;
+            }
+            Map<String, FileObject> exported = new LinkedHashMap<String, FileObject>();
+            for (Map.Entry<String, FileObject> entry : fileEntries.entrySet()) {
+                String jarName = entry.getKey();
+                if (shared.contains(jarName)) {
+                    exported.put(jarName, entry.getValue());
+                } else if (!jarName.equals(bundleName) && !exported.containsKey(bundleName)) {
+                    exported.put(bundleName, fileEntries.get(bundleName));
+                }
+            }
+            return exported;
+        }
+
+        /**
+         * The jars that go in a bundle: the application's own, not the
+         * shared ones.
+         */
+        Map<String, FileObject> own() {
+            Map<String, FileObject> own = new LinkedHashMap<String, FileObject>();
+            for (Map.Entry<String, FileObject> entry : fileEntries.entrySet()) {
+                if (!shared.contains(entry.getKey()) && !entry.getKey().equals(bundleName)) {
+                    own.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return own;
+        }
+    }
     
-    ClassServerCodebaseContext(ClassServer classServer, String appId) {
+    /**
+     * The application's bandwidth and download limits.
+     */
+    final AppBudget budget;
+
+    ClassServerCodebaseContext(AbstractClassServer classServer, String appId) {
         this.appId = appId;
         this.classServer=classServer;
+        this.budget = classServer.budgetFor(appId);
+        this.bundled = classServer.bundles(appId);
+    }
+
+    /**
+     * Limit the bytes per second sent for this application's jars; 0 means
+     * no limit of its own (it may still be held to a share of the server's
+     * total).
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        budget.setBandwidth(bytesPerSecond);
+        classServer.rebalance();
+    }
+
+    /**
+     * Limit how many of this application's jars may be downloading at once;
+     * 0 means no limit. Downloads over the limit are answered with a 503.
+     */
+    public void setMaxDownloads(int maxDownloads) {
+        budget.setMaxDownloads(maxDownloads);
+    }
+
+    /**
+     * Turn bundled mode on or off. Takes effect the next time the annotation
+     * is worked out, i.e. after the next jar is added.
+     */
+    public void setBundled(boolean bundled) {
+        this.bundled = bundled;
     }
 
     @Override
@@ -45,40 +189,254 @@ public class ClassServerCodebaseContext implements CodebaseContext {
         return appId;
     }
 
+    /**
+     * Returns the file registered under the jar name, or null.
+     */
+    FileObject getFile(String jarName) {
+        return snapshot.fileEntries.get(jarName);
+    }
+
+    /**
+     * The current jar table, by jar name.
+     */
+    Map<String, FileObject> files() {
+        return snapshot.fileEntries;
+    }
+
     @Override
     public void addFile(FileObject file) {
+        add(file, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If a different file with the same name is already shared, this one is
+     * served as the application's own.
+     */
+    @Override
+    public void addPlatformFile(FileObject file) {
+        add(file, classServer.sharePlatformFile(file));
+    }
+
+    private void add(FileObject file, boolean share) {
         
-        /* Add the mapping into our list of objects. */
+        /* Add the mapping into a copy of the table and publish the copy. */
         String path=file.getName().getBaseName();
-        fileEntries.put(path, file);
-        /* Force update of the codebase. */
-        codebaseAnnotation=null;
+        boolean wasShared;
+        synchronized (this) {
+            Map<String, FileObject> fileEntries =
+                    new LinkedHashMap<String, FileObject>(snapshot.fileEntries);
+            Map<String, List<String>> packages =
+                    new HashMap<String, List<String>>(snapshot.packages);
+            Set<String> shared = new HashSet<String>(snapshot.shared);
+            // The old bundle doesn't have the new jar in it.
+            fileEntries.remove(snapshot.bundleName);
+            packages.remove(snapshot.bundleName);
+            fileEntries.put(path, file);
+            packages.remove(path);
+            wasShared = share ? !shared.add(path) : shared.remove(path);
+            snapshot = new Snapshot(Collections.unmodifiableMap(fileEntries),
+                    packages, Collections.unmodifiableSet(shared), null);
+        }
+        if (wasShared) {
+            // Let go of the share we had for the jar this one replaces.
+            classServer.releasePlatformFile(path);
+        }
+        classServer.republish();
+        classServer.invalidate(appId + Strings.SLASH + path);
+        classServer.precompress(appId, file);
     }
 
-    private List<URL> codebaseAnnotation=null;
-    
+    /**
+     * Drop a jar from the table.
+     */
+    void removeFile(String jarName) {
+        synchronized (this) {
+            Map<String, FileObject> fileEntries =
+                    new LinkedHashMap<String, FileObject>(snapshot.fileEntries);
+            Map<String, List<String>> packages =
+                    new HashMap<String, List<String>>(snapshot.packages);
+            fileEntries.remove(jarName);
+            packages.remove(jarName);
+            snapshot = new Snapshot(Collections.unmodifiableMap(fileEntries),
+                    packages, snapshot.shared,
+                    jarName.equals(snapshot.bundleName) ? null : snapshot.bundleName);
+        }
+        classServer.republish();
+        classServer.invalidate(appId + Strings.SLASH + jarName);
+    }
+
+    /**
+     * Let go of this context's shares in the platform jars, as it's being
+     * destroyed or replaced.
+     */
+    void releaseSharedFiles() {
+        Set<String> released;
+        synchronized (this) {
+            released = snapshot.shared;
+            snapshot = new Snapshot(snapshot.fileEntries, snapshot.packages,
+                    Collections.<String>emptySet(), snapshot.bundleName);
+        }
+        for (String jarName : released) {
+            classServer.releasePlatformFile(jarName);
+        }
+    }
+
+    /**
+     * The server's host name has changed, so the annotation needs building
+     * again.
+     */
+    synchronized void hostChanged() {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.fileEntries, current.packages, current.shared,
+                current.bundleName);
+        snapshot.bundleTried = current.bundleTried;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The same array is returned until the jars or the server's host name
+     * change, so callers mustn't modify it.
+     */
     @Override
     public URL[] getCodebaseAnnotation() {
+        Snapshot current = snapshot;
+        if (bundled && current.bundleName == null && current.codebaseAnnotation == null) {
+            current = bundle();
+        }
+        URL[] codebaseAnnotation = current.codebaseAnnotation;
         try {
             if (codebaseAnnotation==null) {
                 /*
                 codebase is derived from the list of file objects.
                 */
-                codebaseAnnotation = new ArrayList<URL>();
-                for(String path:fileEntries.keySet()) {
-                    codebaseAnnotation.add(new URL(Strings.HTTP_COLON 
-                            + Strings.SLASH_SLASH 
-                            + classServer.getHost() 
-                            + Strings.COLON
-                            + classServer.getPort() + 
-                            Strings.SLASH
-                            + appId + Strings.SLASH + path));
+                String prefix = Strings.HTTP_COLON
+                        + Strings.SLASH_SLASH
+                        + classServer.getHost()
+                        + Strings.COLON
+                        + classServer.getPort()
+                        + Strings.SLASH;
+                List<URL> urls = new ArrayList<URL>();
+                for(Map.Entry<String, FileObject> entry:current.exported().entrySet()) {
+                    urls.add(new URL(prefix
+                            + jarPath(current, entry.getKey(), entry.getValue())));
                 }
+                codebaseAnnotation = urls.toArray(new URL[0]);
+                current.codebaseAnnotation = codebaseAnnotation;
             }
-            return codebaseAnnotation.toArray(new URL[0]);
+            return codebaseAnnotation;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
     }
-    
+
+    /**
+     * Merge the application's own jars into a bundle, and publish a table
+     * with the bundle in it. Only tried once for each table; if it doesn't
+     * work out, the jars are served separately. The bundle is built outside
+     * the lock; if the jars change meanwhile, it's dropped and the new table
+     * gets bundled the next time the annotation is asked for.
+     */
+    private Snapshot bundle() {
+        Snapshot current;
+        synchronized (this) {
+            current = snapshot;
+            if (current.bundleName != null || current.bundleTried) {
+                return current;
+            }
+            current.bundleTried = true;
+        }
+        Map<String, FileObject> own = current.own();
+        if (own.isEmpty()) {
+            return current;
+        }
+        FileObject bundle = classServer.bundle(appId, own);
+        if (bundle == null) {
+            return current;
+        }
+        String bundleName = bundle.getName().getBaseName();
+        Snapshot bundled;
+        synchronized (this) {
+            Snapshot latest = snapshot;
+            // A new host name doesn't change what's in the bundle.
+            if (latest.fileEntries != current.fileEntries
+                    || latest.shared != current.shared
+                    || latest.bundleName != null) {
+                return latest;
+            }
+            Map<String, FileObject> fileEntries =
+                    new LinkedHashMap<String, FileObject>(latest.fileEntries);
+            fileEntries.put(bundleName, bundle);
+            bundled = new Snapshot(Collections.unmodifiableMap(fileEntries),
+                    latest.packages, latest.shared, bundleName);
+            bundled.bundleTried = true;
+            snapshot = bundled;
+        }
+        classServer.republish();
+        classServer.invalidate(appId + Strings.SLASH + bundleName);
+        classServer.precompress(appId, bundle);
+        return bundled;
+    }
+
+    /**
+     * Where the jar is served, relative to the server's root: under the
+     * platform namespace if it's shared, otherwise under the application's
+     * path.
+     */
+    private String jarPath(Snapshot current, String jarName, FileObject file)
+            throws IOException {
+        String namespace = current.shared.contains(jarName)
+                ? AbstractClassServer.PLATFORM : appId;
+        if (classServer.isContentAddressed()) {
+            /* Put the content hash in the URL, so a redeployed
+            jar gets a different URL. */
+            return namespace + Strings.SLASH + classServer.digest(namespace, file)
+                    + Strings.SLASH + jarName;
+        }
+        return namespace + Strings.SLASH + jarName;
+    }
+
+    /**
+     * The merged package index, in the format of a jar's
+     * META-INF/INDEX.LIST: each jar (named relative to the application's
+     * path, so a shared jar is '../platform/jarName') followed by the
+     * packages in it.
+     * Jars without any packages are left out. The same array is returned
+     * until the jars change, so callers mustn't modify it.
+     * <p>
+     * Any jar that hasn't been listed yet is read here.
+     */
+    byte[] getIndexList() throws IOException {
+        Snapshot current = snapshot;
+        byte[] indexList = current.indexList;
+        if (indexList == null) {
+            StringBuilder sb = new StringBuilder("JarIndex-Version: 1.0\n\n");
+            for (Map.Entry<String, FileObject> entry : current.exported().entrySet()) {
+                List<String> jarPackages = current.packages.get(entry.getKey());
+                if (jarPackages == null) {
+                    jarPackages = AbstractClassServer.packages(entry.getValue());
+                    current.packages.put(entry.getKey(), jarPackages);
+                }
+                if (jarPackages.isEmpty()) {
+                    continue;
+                }
+                String jarPath = jarPath(current, entry.getKey(), entry.getValue());
+                if (current.shared.contains(entry.getKey())) {
+                    sb.append("..").append(Strings.SLASH).append(jarPath);
+                } else {
+                    sb.append(jarPath.substring(appId.length() + 1));
+                }
+                sb.append('\n');
+                for (String pkg : jarPackages) {
+                    sb.append(pkg).append('\n');
+                }
+                sb.append('\n');
+            }
+            indexList = sb.toString().getBytes(UTF_8);
+            current.indexList = indexList;
+        }
+        return indexList;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.List;
+import java.util.Map;
+import javax.management.MXBean;
+
+/**
+ * Management view of the codebase server. The MBeanRegistrar picks this up
+ * when the class server is deployed.
+ *
+ * @author trasukg
+ */
+@MXBean
+public interface ClassServerMXBean {
+
+    public int getPort();
+
+    /**
+     * Most bytes of jar content that the server will cache.
+     */
+    public long getCacheBudget();
+
+    /**
+     * Bytes of jar content currently cached.
+     */
+    public long getCacheSize();
+
+    public int getCacheEntries();
+
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public long getCacheEvictions();
+
+    /**
+     * Compressed size over original size of each application's jars.
+     */
+    public Map<String, Double> getCompressionRatios();
+
+    /**
+     * Bytes that each application's clients didn't have to download because
+     * they took the gzip copies.
+     */
+    public Map<String, Long> getCompressionBytesSaved();
+
+    /**
+     * Connections open now (including idle keep-alive connections).
+     */
+    public int getActiveConnections();
+
+    /**
+     * Connections accepted but not yet picked up by a worker or I/O thread.
+     */
+    public int getQueuedConnections();
+
+    /**
+     * Connections turned away with a 503 because 'maxConnections' were
+     * already open.
+     */
+    public long getConnectionsRejected();
+
+    /**
+     * Connections turned away with a 503 because their client already had
+     * 'maxConnectionsPerClient' open.
+     */
+    public long getConnectionsRejectedPerClient();
+
+    /**
+     * Bytes per second each application's downloads are held to right now;
+     * 0 means no limit.
+     */
+    public Map<String, Long> getAppBandwidth();
+
+    /**
+     * Downloads going on now for each application.
+     */
+    public Map<String, Integer> getAppDownloads();
+
+    /**
+     * Downloads turned away with a 503 because the application already had
+     * its 'appMaxDownloads' going.
+     */
+    public Map<String, Long> getAppDownloadsRejected();
+
+    /**
+     * Responses sent, by status code.
+     */
+    public Map<String, Long> getStatusCounts();
+
+    /**
+     * Time (microseconds) from each request arriving to its response being
+     * sent, by application.
+     */
+    public Map<String, HistogramSnapshot> getAppLatency();
+
+    /**
+     * Bytes sent per response, by application.
+     */
+    public Map<String, HistogramSnapshot> getAppResponseSize();
+
+    /**
+     * Time (microseconds) from each request arriving to its response being
+     * sent, by 'appId/jarName'.
+     */
+    public Map<String, HistogramSnapshot> getJarLatency();
+
+    /**
+     * Bytes sent per response, by 'appId/jarName'.
+     */
+    public Map<String, HistogramSnapshot> getJarResponseSize();
+
+    /**
+     * The most requested jars, busiest first ('topJars' of them).
+     */
+    public List<JarRequestCount> getTopJars();
+
+    /**
+     * The last 'recentRequests' requests, newest first: time, client
+     * address, method, path, status, bytes and milliseconds.
+     */
+    public List<String> getRecentRequests();
+
+    /**
+     * Connections accepted by each listening socket, by 'address:port'.
+     */
+    public Map<String, Long> getListenerConnections();
+
+    /**
+     * Responses sent through each listening socket's connections.
+     */
+    public Map<String, Long> getListenerRequests();
+
+    /**
+     * Bytes sent through each listening socket's connections.
+     */
+    public Map<String, Long> getListenerBytesSent();
+
+    /**
+     * The jars served from the shared platform namespace, with how many
+     * applications use each.
+     */
+    public Map<String, Integer> getPlatformJars();
+}
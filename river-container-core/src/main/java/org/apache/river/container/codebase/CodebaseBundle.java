@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Merges an application's codebase jars into one bundle jar, so that a
+ * client has a single URL to download instead of one per jar.
+ * <p>
+ * The jars are copied in annotation order and the first copy of any entry
+ * wins, which is the class a client would have loaded from the separate
+ * jars. That goes for the manifest and META-INF/PREFERRED.LIST too. Jar
+ * signatures are left out, since they don't hold for the merged jar, as is
+ * any INDEX.LIST.
+ *
+ * @author trasukg
+ */
+class CodebaseBundle {
+
+    private CodebaseBundle() {
+    }
+
+    /**
+     * Write the bundle of the given jars to the target file. The bundle is
+     * written alongside first and renamed into place, so a bundle that
+     * exists is always complete.
+     *
+     * @param compress Whether to deflate the entries, or store them.
+     * @return How many entries went into the bundle.
+     */
+    static int build(File target, Collection<FileObject> jars, boolean compress)
+            throws IOException {
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        int entries = 0;
+        try {
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(temp));
+            try {
+                out.setMethod(compress ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
+                Set<String> names = new HashSet<String>();
+                byte[] buffer = new byte[CodebaseResponse.STREAM_BUFFER_SIZE];
+                for (FileObject jar : jars) {
+                    ZipInputStream in = new ZipInputStream(jar.getContent().getInputStream());
+                    try {
+                        ZipEntry entry;
+                        while ((entry = in.getNextEntry()) != null) {
+                            String name = entry.getName();
+                            if (skipped(name) || !names.add(name)) {
+                                continue;
+                            }
+                            copy(in, entry, out, compress, buffer);
+                            entries++;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(target) && !target.isFile()) {
+                throw new IOException("Couldn't rename " + temp + " to " + target);
+            }
+        } finally {
+            temp.delete();
+        }
+        return entries;
+    }
+
+    private static void copy(InputStream in, ZipEntry entry, ZipOutputStream out,
+            boolean compress, byte[] buffer) throws IOException {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        if (entry.getTime() != -1) {
+            copy.setTime(entry.getTime());
+        }
+        if (compress) {
+            out.putNextEntry(copy);
+            pipe(in, out, buffer);
+        } else {
+            /* A stored entry's size and CRC go in its header, so it has to
+             be read in full first. */
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            pipe(in, content, buffer);
+            byte[] bytes = content.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            copy.setSize(bytes.length);
+            copy.setCompressedSize(bytes.length);
+            copy.setCrc(crc.getValue());
+            out.putNextEntry(copy);
+            out.write(bytes);
+        }
+        out.closeEntry();
+    }
+
+    private static void pipe(InputStream in, OutputStream out, byte[] buffer)
+            throws IOException {
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Whether the entry is left out of the bundle.
+     */
+    static boolean skipped(String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+        if (!upper.startsWith("META-INF/") || upper.indexOf('/', 9) >= 0) {
+            return false;
+        }
+        return upper.equals("META-INF/INDEX.LIST") || upper.endsWith(".SF")
+                || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")
+                || upper.startsWith("META-INF/SIG-");
+    }
+}
@@ -36,9 +36,18 @@ public interface CodebaseContext {
     */
     public void addFile(FileObject file);
     
+    /**
+    Add a file that other applications may export too (e.g. the platform's
+    jsk-dl.jar).  The codebase handler may serve one copy of it for all of
+    them, at the same URL.
+    @param file 
+    */
+    public void addPlatformFile(FileObject file);
+    
     /**
     Get a string that represents the codebase annotation that should be returned
-    by the classloader to correspond to this set.
+    by the classloader to correspond to this set.  The jars are listed in
+    the order they were added.  The array may be shared, so don't modify it.
     @return 
     */
     public URL[] getCodebaseAnnotation();
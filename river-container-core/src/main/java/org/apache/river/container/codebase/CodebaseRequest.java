@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.nio.charset.Charset;
+
+/**
+ * Byte-level parser for an HTTP request head. One of these belongs to each
+ * connection and is reused for every request on it; parse() only records
+ * where things are in the connection's buffer, so an ordinary GET is parsed
+ * without creating any objects. Strings are only made for the header values
+ * that the less common features (conditional and range requests, content
+ * negotiation) need, when the client actually sends them.
+ *
+ * @author trasukg
+ */
+class CodebaseRequest {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    static final String HTTP_1_0 = "HTTP/1.0", HTTP_1_1 = "HTTP/1.1";
+    static final int OTHER = 0, GET = 1, HEAD = 2;
+    /**
+     * The header fields we look at; indexes into HEADER_NAMES.
+     */
+    static final int CONNECTION = 0, IF_NONE_MATCH = 1, IF_MODIFIED_SINCE = 2,
+            RANGE = 3, IF_RANGE = 4, ACCEPT_ENCODING = 5;
+    private static final byte[][] HEADER_NAMES = {
+        ascii("connection"), ascii("if-none-match"), ascii("if-modified-since"),
+        ascii("range"), ascii("if-range"), ascii("accept-encoding")
+    };
+    private static final byte[] GET_BYTES = ascii("GET"), HEAD_BYTES = ascii("HEAD"),
+            HTTP_1_0_BYTES = ascii(HTTP_1_0), HTTP_BYTES = ascii("HTTP/");
+    byte[] buf;
+    /**
+     * GET, HEAD or OTHER.
+     */
+    int method;
+    /**
+     * Where the request target (e.g. '/appId/x-dl.jar') is in the buffer.
+     */
+    int targetStart, targetEnd;
+    /**
+     * Protocol version that we answer with: HTTP/1.0 for a 1.0 request or
+     * one without a version, otherwise HTTP/1.1.
+     */
+    String version;
+    private int requestLineStart, requestLineEnd;
+    private final int[] headerStart = new int[HEADER_NAMES.length];
+    private final int[] headerEnd = new int[HEADER_NAMES.length];
+
+    static byte[] ascii(String s) {
+        return s.getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Parse the request head in buf[start, end). Blank lines ahead of the
+     * request line are skipped.
+     *
+     * @return false if there's no usable request line.
+     */
+    boolean parse(byte[] buf, int start, int end) {
+        this.buf = buf;
+        method = OTHER;
+        targetStart = targetEnd = 0;
+        version = HTTP_1_0;
+        for (int i = 0; i < headerStart.length; i++) {
+            headerStart[i] = headerEnd[i] = -1;
+        }
+        int i = start;
+        while (i < end && (buf[i] == '\r' || buf[i] == '\n')) {
+            i++;
+        }
+        requestLineStart = i;
+        int eol = lineEnd(buf, i, end);
+        requestLineEnd = eol;
+        // Method
+        int sp = indexOf(buf, ' ', i, eol);
+        if (sp < 0) {
+            return false;
+        }
+        if (regionEquals(buf, i, sp, GET_BYTES)) {
+            method = GET;
+        } else if (regionEquals(buf, i, sp, HEAD_BYTES)) {
+            method = HEAD;
+        }
+        // Target
+        targetStart = sp + 1;
+        sp = indexOf(buf, ' ', targetStart, eol);
+        targetEnd = sp < 0 ? eol : sp;
+        // Version
+        if (sp >= 0) {
+            int v = sp + 1;
+            if (eol - v >= HTTP_BYTES.length
+                    && regionEquals(buf, v, v + HTTP_BYTES.length, HTTP_BYTES)
+                    && !regionEquals(buf, v, eol, HTTP_1_0_BYTES)) {
+                version = HTTP_1_1;
+            }
+        }
+        // Header fields
+        i = skipEol(buf, eol, end);
+        while (i < end) {
+            eol = lineEnd(buf, i, end);
+            if (eol == i) {
+                break;
+            }
+            int colon = indexOf(buf, ':', i, eol);
+            if (colon > i) {
+                int which = headerIndex(buf, i, colon);
+                if (which >= 0) {
+                    int v = colon + 1;
+                    while (v < eol && (buf[v] == ' ' || buf[v] == '\t')) {
+                        v++;
+                    }
+                    int e = eol;
+                    while (e > v && (buf[e - 1] == ' ' || buf[e - 1] == '\t')) {
+                        e--;
+                    }
+                    headerStart[which] = v;
+                    headerEnd[which] = e;
+                }
+            }
+            i = skipEol(buf, eol, end);
+        }
+        return targetEnd > targetStart;
+    }
+
+    private static int lineEnd(byte[] buf, int i, int end) {
+        while (i < end && buf[i] != '\r' && buf[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipEol(byte[] buf, int i, int end) {
+        if (i < end && buf[i] == '\r') {
+            i++;
+        }
+        if (i < end && buf[i] == '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    static int indexOf(byte[] buf, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean regionEquals(byte[] buf, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buf[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether buf[start, end) holds exactly the characters of the string.
+     */
+    static boolean regionEquals(byte[] buf, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if ((buf[start + i] & 0xff) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int headerIndex(byte[] buf, int start, int end) {
+        for (int h = 0; h < HEADER_NAMES.length; h++) {
+            byte[] name = HEADER_NAMES[h];
+            if (name.length != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length && toLower(buf[start + i]) == name[i]) {
+                i++;
+            }
+            if (i == name.length) {
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Value of one of the header fields we look at (e.g. RANGE), or null if
+     * the client didn't send it.
+     */
+    String header(int which) {
+        if (headerStart[which] < 0) {
+            return null;
+        }
+        return new String(buf, headerStart[which], headerEnd[which] - headerStart[which],
+                ISO_8859_1);
+    }
+
+    boolean hasHeader(int which) {
+        return headerStart[which] >= 0;
+    }
+
+    private boolean headerEqualsIgnoreCase(int which, String value) {
+        int start = headerStart[which];
+        if (start < 0 || headerEnd[which] - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (toLower(buf[start + i]) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The request line, for logging.
+     */
+    String requestLine() {
+        return new String(buf, requestLineStart, requestLineEnd - requestLineStart, ISO_8859_1);
+    }
+
+    /**
+     * The request target, for the cases the fast path doesn't handle.
+     */
+    String target() {
+        return new String(buf, targetStart, targetEnd - targetStart, ISO_8859_1);
+    }
+
+    /**
+     * Whether the client wants the connection kept open after the response.
+     * HTTP/1.1 connections are persistent unless the client says 'close';
+     * HTTP/1.0 ones only if it asks for 'keep-alive'.
+     */
+    boolean wantsKeepAlive() {
+        if (version == HTTP_1_1) {
+            return !headerEqualsIgnoreCase(CONNECTION, "close");
+        }
+        return headerEqualsIgnoreCase(CONNECTION, "keep-alive");
+    }
+}
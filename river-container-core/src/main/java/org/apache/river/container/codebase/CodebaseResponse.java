@@ -0,0 +1,531 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response on its way back to the client: the header, then the body from
+ * wherever it happens to live. Files on the local disk go straight from their
+ * FileChannel to the socket through transferTo(), anything else is copied
+ * through one small buffer, so a download never needs the whole file on the
+ * heap.
+ * <p>
+ * The body is a list of segments that are sent one after the other, which is
+ * how a multipart/byteranges response gets its part headers in between the
+ * pieces of the file.
+ * <p>
+ * writeTo() works for both blocking and non-blocking channels; with a
+ * non-blocking channel it just sends what it can and gets called again when
+ * the socket is writable. A download that counts against an application's
+ * budget is paced by the budget's token bucket; when that runs dry, writeTo()
+ * stops early and throttledFor() says how long to wait.
+ * <p>
+ * A selector thread mustn't block reading a stream, so a response written
+ * from one is told to deferReads(): writeTo() then stops when it needs more
+ * of a stream, needsFill() says so, and fill() does the read on a thread
+ * that's allowed to block.
+ * <p>
+ * When the header is followed by a body that's already in memory (a cached
+ * jar, or the first buffer of a stream), the two go out in one gathering
+ * write, so the header never sits in a small packet of its own waiting for
+ * the client's delayed ACK.
+ *
+ * @author trasukg
+ */
+class CodebaseResponse {
+
+    /**
+     * Size of the copy buffer used for content that isn't on the local disk.
+     */
+    static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    private final boolean keepAlive;
+    private final List<Segment> segments = new ArrayList<Segment>(2);
+    private final List<Closeable> resources = new ArrayList<Closeable>(1);
+    private int current = 0;
+    private AppBudget budget = null;
+    private long throttledFor = 0;
+    private boolean deferReads = false;
+    /*
+     What the response was for, for the request metrics.
+     */
+    int status = 0;
+    int method = CodebaseRequest.OTHER;
+    /**
+     * The application, if the request was for one of its jars.
+     */
+    String appId = null;
+    /**
+     * 'appId/jarName', or whatever path was asked for if it wasn't found.
+     */
+    String path = null;
+    /**
+     * System.nanoTime() when the request came in.
+     */
+    long started = 0;
+
+    /**
+     * @param keepAlive Whether the connection stays open for another request
+     * once this response has been sent.
+     */
+    CodebaseResponse(ByteBuffer header, boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        body(header);
+    }
+
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Send the next part of the body from memory.
+     */
+    CodebaseResponse body(ByteBuffer body) {
+        segments.add(new BufferSegment(body));
+        return this;
+    }
+
+    /**
+     * Send the next part of the body straight from a file, starting at
+     * 'position'. The file is closed along with the response.
+     */
+    CodebaseResponse body(FileChannel file, long position, long count) {
+        if (!resources.contains(file)) {
+            resources.add(file);
+        }
+        segments.add(new FileSegment(file, position, position + count));
+        return this;
+    }
+
+    /**
+     * Copy the rest of a stream through a bounded buffer.
+     */
+    CodebaseResponse body(InputStream in) {
+        return body(in, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copy 'count' bytes from a stream, after skipping the first 'skip'. The
+     * stream is closed along with the response.
+     */
+    CodebaseResponse body(InputStream in, long skip, long count) {
+        resources.add(in);
+        StreamSegment segment = new StreamSegment(in, skip, count);
+        segment.deferReads = deferReads;
+        segments.add(segment);
+        return this;
+    }
+
+    /**
+     * Count this response against the application's budget, until it's
+     * closed.
+     */
+    void budget(AppBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Leave reading from streams to fill(), rather than doing it in
+     * writeTo().
+     */
+    void deferReads() {
+        deferReads = true;
+        for (Segment segment : segments) {
+            segment.deferReads = true;
+        }
+    }
+
+    /**
+     * After writeTo() has returned false: whether it stopped because the
+     * next part of a stream has to be read first.
+     */
+    boolean needsFill() {
+        return deferReads && current < segments.size()
+                && segments.get(current).needsFill();
+    }
+
+    /**
+     * Read the next part of the stream that writeTo() stopped for. This may
+     * block.
+     */
+    void fill() throws IOException {
+        segments.get(current).fill();
+    }
+
+    /**
+     * Write as much of the response as the channel (and the budget, if
+     * there is one) will take.
+     *
+     * @return true if the response has been completely written.
+     */
+    boolean writeTo(WritableByteChannel out) throws IOException {
+        throttledFor = 0;
+        while (current < segments.size()) {
+            Segment segment = segments.get(current);
+            if (deferReads && segment.needsFill()) {
+                return false;
+            }
+            long max = Long.MAX_VALUE;
+            if (budget != null) {
+                max = budget.bucket.take(STREAM_BUFFER_SIZE);
+                if (max == 0) {
+                    throttledFor = budget.bucket.waitMillis(STREAM_BUFFER_SIZE);
+                    return false;
+                }
+            } else if (out instanceof GatheringByteChannel
+                    && !gather((GatheringByteChannel) out)) {
+                return false;
+            }
+            long before = segment.sent();
+            boolean done = segment.writeTo(out, max);
+            long written = segment.sent() - before;
+            if (budget != null) {
+                budget.bucket.refund(max - written);
+            }
+            if (done) {
+                current++;
+            } else if (written < max) {
+                // The channel is full.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the run of in-memory buffers that starts at the current segment
+     * in one go. The segments are left for writeTo() to finish off.
+     *
+     * @return false if the channel is full.
+     */
+    private boolean gather(GatheringByteChannel out) throws IOException {
+        List<ByteBuffer> run = new ArrayList<ByteBuffer>(2);
+        for (int i = current; i < segments.size(); i++) {
+            ByteBuffer buffer = segments.get(i).pending();
+            if (buffer == null) {
+                break;
+            }
+            run.add(buffer);
+        }
+        if (run.size() < 2) {
+            return true;
+        }
+        int[] before = new int[run.size()];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = run.get(i).position();
+        }
+        out.write(run.toArray(new ByteBuffer[run.size()]));
+        boolean full = false;
+        for (int i = 0; i < before.length; i++) {
+            ByteBuffer buffer = run.get(i);
+            segments.get(current + i).wrote(buffer.position() - before[i]);
+            full |= buffer.hasRemaining();
+        }
+        return !full;
+    }
+
+    /**
+     * After writeTo() has returned false: milliseconds to wait for the
+     * budget, or 0 if it stopped because the channel was full.
+     */
+    long throttledFor() {
+        return throttledFor;
+    }
+
+    /**
+     * Bytes written so far, header included.
+     */
+    long bytesWritten() {
+        long total = 0;
+        for (int i = 0; i <= current && i < segments.size(); i++) {
+            total += segments.get(i).sent();
+        }
+        return total;
+    }
+
+    /**
+     * Release the files and streams behind the body.
+     */
+    void close() {
+        if (budget != null) {
+            budget.finish();
+            budget = null;
+        }
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // Nothing useful to do.
+            }
+        }
+    }
+
+    /**
+     * Write at most 'max' bytes of the buffer.
+     */
+    private static int write(WritableByteChannel out, ByteBuffer buffer, long max)
+            throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (buffer.remaining() <= max) {
+            return out.write(buffer);
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) max);
+        try {
+            return out.write(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private static abstract class Segment {
+
+        /**
+         * Stop for fill() rather than read in writeTo().
+         */
+        boolean deferReads = false;
+
+        /**
+         * Write at most 'max' bytes.
+         *
+         * @return true once the whole segment has been written.
+         */
+        abstract boolean writeTo(WritableByteChannel out, long max) throws IOException;
+
+        abstract long sent();
+
+        /**
+         * Whether the segment has to read from its source before it can
+         * write anything more.
+         */
+        boolean needsFill() {
+            return false;
+        }
+
+        /**
+         * Read the next part of the source.
+         */
+        void fill() throws IOException {
+        }
+
+        /**
+         * The buffer holding what's left to write, if the segment is
+         * written from memory, or null.
+         */
+        ByteBuffer pending() throws IOException {
+            return null;
+        }
+
+        /**
+         * Account for 'n' bytes of pending() written by someone else.
+         */
+        void wrote(int n) {
+        }
+    }
+
+    private static class BufferSegment extends Segment {
+
+        final ByteBuffer buffer;
+        final int start;
+
+        BufferSegment(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.start = buffer.position();
+        }
+
+        @Override
+        long sent() {
+            return buffer.position() - start;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel out, long max) throws IOException {
+            write(out, buffer, max);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        ByteBuffer pending() {
+            return buffer;
+        }
+    }
+
+    private static class FileSegment extends Segment {
+
+        final FileChannel file;
+        final long start;
+        long position;
+        final long end;
+
+        FileSegment(FileChannel file, long position, long end) {
+            this.file = file;
+            this.start = position;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        long sent() {
+            return position - start;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel out, long max) throws IOException {
+            long limit = end - position > max ? position + max : end;
+            while (position < limit) {
+                long n = file.transferTo(position, limit - position, out);
+                if (n <= 0) {
+                    /* The Content-Length has gone out already, so a file
+                     that shrank underneath us can't just end early; the
+                     client would read the next response as part of this
+                     one. */
+                    if (position >= file.size()) {
+                        throw new IOException("File ended " + (end - position)
+                                + " bytes short of the response");
+                    }
+                    return false;
+                }
+                position += n;
+            }
+            return position >= end;
+        }
+    }
+
+    private static class StreamSegment extends Segment {
+
+        final InputStream in;
+        final ReadableByteChannel stream;
+        long skip;
+        long remaining;
+        long sent = 0;
+        boolean eof = false;
+        /**
+         * Whether the stream has to supply all of 'count', or just runs
+         * to its end.
+         */
+        final boolean exact;
+        ByteBuffer buffer = null;
+
+        StreamSegment(InputStream in, long skip, long count) {
+            this.in = in;
+            this.stream = Channels.newChannel(in);
+            this.skip = skip;
+            this.remaining = count;
+            this.exact = count != Long.MAX_VALUE;
+        }
+
+        /**
+         * The stream has run out. If that's before the end of the segment,
+         * fail the response rather than end it short of its Content-Length.
+         */
+        private void ended() throws IOException {
+            eof = true;
+            if (exact) {
+                throw new IOException("Stream ended " + remaining
+                        + " bytes short of the response");
+            }
+        }
+
+        @Override
+        long sent() {
+            return sent;
+        }
+
+        @Override
+        boolean needsFill() {
+            return (buffer == null || !buffer.hasRemaining()) && remaining > 0 && !eof;
+        }
+
+        @Override
+        void fill() throws IOException {
+            if (buffer == null) {
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        if (in.read() < 0) {
+                            ended();
+                            return;
+                        }
+                        n = 1;
+                    }
+                    skip -= n;
+                }
+                buffer = ByteBuffer.allocate((int) Math.min(STREAM_BUFFER_SIZE,
+                        Math.max(remaining, 1)));
+            }
+            buffer.clear();
+            if (buffer.capacity() > remaining) {
+                buffer.limit((int) remaining);
+            }
+            int n = stream.read(buffer);
+            buffer.flip();
+            if (n < 0) {
+                ended();
+            } else {
+                remaining -= n;
+            }
+        }
+
+        @Override
+        ByteBuffer pending() throws IOException {
+            if (needsFill() && !deferReads) {
+                fill();
+            }
+            return buffer != null && buffer.hasRemaining() ? buffer : null;
+        }
+
+        @Override
+        void wrote(int n) {
+            sent += n;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel out, long max) throws IOException {
+            for (;;) {
+                if (buffer == null || !buffer.hasRemaining()) {
+                    if (remaining <= 0 || eof) {
+                        return true;
+                    }
+                    if (deferReads) {
+                        return false;
+                    }
+                    fill();
+                    continue;
+                }
+                int n = write(out, buffer, max);
+                sent += n;
+                max -= n;
+                if (buffer.hasRemaining() || max <= 0) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How well one application's jars compress, and how many bytes the compressed
+ * copies have saved so far.
+ *
+ * @author trasukg
+ */
+class CompressionStats {
+
+    /**
+     * {original size, compressed size} for each jar that has been compressed.
+     */
+    private final Map<String, long[]> sizes = new HashMap<String, long[]>();
+    private long bytesSaved = 0;
+
+    synchronized void compressed(String jarName, long originalSize, long compressedSize) {
+        sizes.put(jarName, new long[]{originalSize, compressedSize});
+    }
+
+    synchronized void served(String jarName) {
+        long[] size = sizes.get(jarName);
+        if (size != null) {
+            bytesSaved += size[0] - size[1];
+        }
+    }
+
+    /**
+     * Compressed size over original size, for all the jars together; 1.0 if
+     * nothing has been compressed.
+     */
+    synchronized double getRatio() {
+        long original = 0, compressed = 0;
+        for (long[] size : sizes.values()) {
+            original += size[0];
+            compressed += size[1];
+        }
+        return original == 0 ? 1.0 : (double) compressed / original;
+    }
+
+    synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Least-recently-used cache of codebase jar contents, keyed by 'appId/jarName'.
+ * The bytes are held in direct buffers, so they're off the Java heap and can
+ * be written to a socket without another copy.
+ * <p>
+ * Each entry remembers the FileObject it was read from, and a lookup only
+ * hits if the context still maps the path to that same FileObject. So a
+ * redeployed jar can never be served from a stale entry, even if it was read
+ * while the mapping was changing.
+ * <p>
+ * Concurrent misses on the same jar share one load: the first request reads
+ * the file and the others wait for it, so a storm of clients asking for a
+ * jar that isn't cached yet costs one buffer and one read, not one each.
+ *
+ * @author trasukg
+ */
+class ContentCache {
+
+    private final long budget;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long loads = 0;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /**
+     * Loads in progress, by path.
+     */
+    private final Map<String, Load> loading = new HashMap<String, Load>();
+
+    /**
+     * @param budget Most bytes that the cache will hold. Zero turns the cache
+     * off.
+     */
+    ContentCache(long budget) {
+        this.budget = budget;
+    }
+
+    private static class Entry {
+
+        final FileObject source;
+        final ByteBuffer content;
+
+        Entry(FileObject source, ByteBuffer content) {
+            this.source = source;
+            this.content = content;
+        }
+    }
+
+    /**
+     * A load of one file, that any number of requests can wait for.
+     */
+    private static class Load extends FutureTask<ByteBuffer> {
+
+        final FileObject source;
+
+        Load(FileObject source, Callable<ByteBuffer> read) {
+            super(read);
+            this.source = source;
+        }
+    }
+
+    /**
+     * Returns the cached content for the path, or null if it isn't cached.
+     * The returned buffer is the caller's own read-only view, positioned at
+     * the start of the content.
+     */
+    synchronized ByteBuffer get(String key, FileObject source) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.source != source) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.content.duplicate();
+    }
+
+    /**
+     * Whether content of this size is worth reading into the cache.
+     */
+    boolean accepts(long length) {
+        return budget > 0 && length <= budget && length <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Read the file into a direct buffer and cache it, evicting the least
+     * recently used entries to make room. If the same file is being loaded
+     * already, wait for that load instead, and if it's been loaded since the
+     * caller missed, just return it.
+     *
+     * @return A read-only view of the content, positioned at the start.
+     */
+    ByteBuffer load(final String key, final FileObject source, final long length)
+            throws IOException {
+        Load load;
+        boolean mine = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.source == source) {
+                return entry.content.duplicate();
+            }
+            load = loading.get(key);
+            if (load == null || load.source != source) {
+                load = new Load(source, new Callable<ByteBuffer>() {
+
+                    @Override
+                    public ByteBuffer call() throws IOException {
+                        return read(key, source, length);
+                    }
+                });
+                loading.put(key, load);
+                mine = true;
+            }
+        }
+        if (mine) {
+            try {
+                load.run();
+            } finally {
+                synchronized (this) {
+                    if (loading.get(key) == load) {
+                        loading.remove(key);
+                    }
+                }
+            }
+        }
+        try {
+            return load.get().duplicate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private ByteBuffer read(String key, FileObject source, long length) throws IOException {
+        synchronized (this) {
+            loads++;
+        }
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        InputStream in = source.getContent().getInputStream();
+        try {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+            }
+        } finally {
+            in.close();
+        }
+        content.flip();
+        return put(key, source, content);
+    }
+
+    /**
+     * Cache content that the caller has already worked out (e.g. a
+     * compressed copy), evicting the least recently used entries to make
+     * room.
+     *
+     * @return A read-only view of the content, positioned at the start.
+     */
+    ByteBuffer put(String key, FileObject source, ByteBuffer content) {
+        content = content.asReadOnlyBuffer();
+        synchronized (this) {
+            remove(key);
+            while (size + content.capacity() > budget && !entries.isEmpty()) {
+                Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+                size -= eldest.next().getValue().content.capacity();
+                eldest.remove();
+                evictions++;
+            }
+            entries.put(key, new Entry(source, content));
+            size += content.capacity();
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Like get(), but doesn't count towards the hit and miss figures; for
+     * optional extras like compressed copies.
+     */
+    synchronized ByteBuffer peek(String key, FileObject source) {
+        Entry entry = entries.get(key);
+        return entry == null || entry.source != source ? null : entry.content.duplicate();
+    }
+
+    /**
+     * Drop the entry for one path.
+     */
+    synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    /**
+     * Drop every entry whose path starts with the prefix (e.g. 'appId/').
+     */
+    synchronized void invalidatePrefix(String prefix) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                size -= e.getValue().content.capacity();
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.content.capacity();
+        }
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * How many times a file has actually been read into the cache.
+     */
+    synchronized long getLoads() {
+        return loads;
+    }
+}
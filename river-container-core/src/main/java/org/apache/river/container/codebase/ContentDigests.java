@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * SHA-256 digests of the codebase jars, keyed by 'appId/jarName'. A digest is
+ * worked out the first time it's asked for and kept until the mapping
+ * changes. As with the ContentCache, each digest remembers the FileObject it
+ * was computed from and is only returned for that same FileObject.
+ * <p>
+ * Requests that arrive while a digest is being worked out wait for it rather
+ * than hashing the jar again themselves.
+ *
+ * @author trasukg
+ */
+class ContentDigests {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final Map<String, Entry> digests = new HashMap<String, Entry>();
+
+    private static class Entry extends FutureTask<String> {
+
+        final FileObject source;
+
+        Entry(final FileObject source) {
+            super(new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    return sha256(source);
+                }
+            });
+            this.source = source;
+        }
+    }
+
+    /**
+     * Returns the digest of the file's content as lower-case hex.
+     */
+    String get(String key, FileObject source) throws IOException {
+        Entry entry;
+        boolean mine = false;
+        synchronized (this) {
+            entry = digests.get(key);
+            if (entry == null || entry.source != source) {
+                entry = new Entry(source);
+                digests.put(key, entry);
+                mine = true;
+            }
+        }
+        if (mine) {
+            entry.run();
+        }
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key);
+        } catch (ExecutionException e) {
+            // Let the next request try again.
+            synchronized (this) {
+                if (digests.get(key) == entry) {
+                    digests.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        digests.remove(key);
+    }
+
+    synchronized void invalidatePrefix(String prefix) {
+        Iterator<String> it = digests.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    static String sha256(FileObject source) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        InputStream in = source.getContent().getInputStream();
+        try {
+            byte[] buffer = new byte[CodebaseResponse.STREAM_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] hash = md.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -56,6 +56,11 @@ public class DummyCodebaseHandler implements CodebaseHandler {
             }
         }
         
+        @Override
+        public void addPlatformFile(FileObject file) {
+            addFile(file);
+        }
+        
         @Override
         public URL[] getCodebaseAnnotation() {
             return urls.toArray(new URL[0]);
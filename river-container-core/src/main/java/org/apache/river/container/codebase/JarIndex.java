@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Index of one jar's central directory, so that a single entry can be read
+ * out of the jar without scanning it. The directory is read once, from the
+ * end of the archive; after that, fetching an entry is a hash lookup plus
+ * two positioned reads (the entry's local header and its data).
+ * <p>
+ * The index doesn't hold the jar open. Each read is given the jar's content
+ * as either a FileChannel or a buffer, so the caller decides where the bytes
+ * come from.
+ *
+ * @author trasukg
+ */
+class JarIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LOC_SIG = 0x04034b50, CEN_SIG = 0x02014b50,
+            END_SIG = 0x06054b50;
+    private static final int LOC_HEADER = 30, CEN_HEADER = 46, END_HEADER = 22;
+    private static final int STORED = 0, DEFLATED = 8;
+    /**
+     * Longest an archive comment can be, so the furthest back from the end
+     * that the end-of-central-directory record can start.
+     */
+    private static final int MAX_COMMENT = 0xffff;
+    private final Map<String, Entry> entries;
+
+    static class Entry {
+
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long headerOffset;
+
+        Entry(String name, int method, long crc, long compressedSize, long size,
+                long headerOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private JarIndex(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Read the central directory of the jar in the channel.
+     */
+    static JarIndex read(FileChannel channel) throws IOException {
+        return read(new ChannelSource(channel));
+    }
+
+    /**
+     * Read the central directory of the jar held in the buffer.
+     */
+    static JarIndex read(ByteBuffer content) throws IOException {
+        return read(new BufferSource(content));
+    }
+
+    private static JarIndex read(Source source) throws IOException {
+        long length = source.size();
+        int tailLength = (int) Math.min(length, MAX_COMMENT + END_HEADER);
+        ByteBuffer tail = source.read(length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_HEADER; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("No end of central directory");
+        }
+        int count = tail.getShort(end + 10) & 0xffff;
+        long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (directorySize > Integer.MAX_VALUE
+                || directoryOffset + directorySize > length) {
+            throw new ZipException("Unsupported central directory");
+        }
+        ByteBuffer directory = source.read(directoryOffset, (int) directorySize);
+        Map<String, Entry> entries = new HashMap<String, Entry>(count * 4 / 3 + 1);
+        int p = 0;
+        while (p + CEN_HEADER <= directory.limit()) {
+            if (directory.getInt(p) != CEN_SIG) {
+                throw new ZipException("Bad central directory entry");
+            }
+            int nameLength = directory.getShort(p + 28) & 0xffff;
+            int extraLength = directory.getShort(p + 30) & 0xffff;
+            int commentLength = directory.getShort(p + 32) & 0xffff;
+            byte[] name = new byte[nameLength];
+            directory.position(p + CEN_HEADER);
+            directory.get(name);
+            String entryName = new String(name, UTF_8);
+            entries.put(entryName, new Entry(entryName,
+                    directory.getShort(p + 10) & 0xffff,
+                    directory.getInt(p + 16) & 0xffffffffL,
+                    directory.getInt(p + 20) & 0xffffffffL,
+                    directory.getInt(p + 24) & 0xffffffffL,
+                    directory.getInt(p + 42) & 0xffffffffL));
+            p += CEN_HEADER + nameLength + extraLength + commentLength;
+        }
+        return new JarIndex(entries);
+    }
+
+    /**
+     * The entry with the given name, or null if the jar hasn't got one (or
+     * it's a directory).
+     */
+    Entry get(String name) {
+        Entry entry = entries.get(name);
+        return entry == null || name.endsWith("/") ? null : entry;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * The packages (as directory names, e.g. 'com/example') that the jar has
+     * files in, sorted, as a JarIndex lists them. Files at the top level are
+     * listed by name, and META-INF is left out.
+     */
+    List<String> packages() {
+        TreeSet<String> packages = new TreeSet<String>();
+        for (String name : entries.keySet()) {
+            if (name.endsWith("/") || name.startsWith("META-INF/")) {
+                continue;
+            }
+            int slash = name.lastIndexOf('/');
+            packages.add(slash < 0 ? name : name.substring(0, slash));
+        }
+        return new ArrayList<String>(packages);
+    }
+
+    /**
+     * Read and, if need be, inflate an entry's content from the jar in the
+     * channel.
+     */
+    static byte[] content(Entry entry, FileChannel channel) throws IOException {
+        return content(entry, new ChannelSource(channel));
+    }
+
+    /**
+     * Read and, if need be, inflate an entry's content from the jar held in
+     * the buffer.
+     */
+    static byte[] content(Entry entry, ByteBuffer jar) throws IOException {
+        return content(entry, new BufferSource(jar));
+    }
+
+    private static byte[] content(Entry entry, Source source) throws IOException {
+        if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        ByteBuffer header = source.read(entry.headerOffset, LOC_HEADER);
+        if (header.getInt(0) != LOC_SIG) {
+            throw new ZipException("Bad local header: " + entry.name);
+        }
+        /* The local header's extra field needn't be the same length as the
+         central directory's, so the data offset has to come from here. */
+        long dataOffset = entry.headerOffset + LOC_HEADER
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        ByteBuffer data = source.read(dataOffset, (int) entry.compressedSize);
+        byte[] bytes = new byte[(int) entry.size];
+        if (entry.method == STORED) {
+            data.get(bytes);
+            return bytes;
+        }
+        if (entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method
+                    + ": " + entry.name);
+        }
+        byte[] compressed;
+        int offset;
+        if (data.hasArray()) {
+            compressed = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            compressed = new byte[data.remaining()];
+            data.get(compressed);
+            offset = 0;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, offset, (int) entry.compressedSize);
+            int n = 0;
+            while (n < bytes.length) {
+                int inflated = inflater.inflate(bytes, n, bytes.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != bytes.length) {
+                throw new ZipException("Truncated entry: " + entry.name);
+            }
+        } catch (DataFormatException ex) {
+            ZipException zex = new ZipException("Corrupt entry: " + entry.name);
+            zex.initCause(ex);
+            throw zex;
+        } finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+
+    /**
+     * Where the jar's bytes come from.
+     */
+    private static abstract class Source {
+
+        abstract long size() throws IOException;
+
+        /**
+         * Returns a little-endian buffer holding bytes [position,
+         * position+length) of the jar, positioned at zero.
+         */
+        abstract ByteBuffer read(long position, int length) throws IOException;
+    }
+
+    private static class ChannelSource extends Source {
+
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static class BufferSource extends Source {
+
+        private final ByteBuffer content;
+
+        BufferSource(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        long size() {
+            return content.remaining();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            if (position < 0 || position + length > content.remaining()) {
+                throw new EOFException();
+            }
+            ByteBuffer part = content.duplicate();
+            part.position(content.position() + (int) position);
+            part.limit(part.position() + length);
+            return part.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
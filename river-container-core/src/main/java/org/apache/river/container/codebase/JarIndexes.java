@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Central-directory indexes of the codebase jars, keyed by 'appId/jarName',
+ * for serving single entries out of them. As with the ContentDigests, each
+ * index remembers the FileObject it was read from and is only returned for
+ * that same FileObject.
+ *
+ * @author trasukg
+ */
+class JarIndexes {
+
+    private final Map<String, Entry> indexes = new HashMap<String, Entry>();
+
+    private static class Entry {
+
+        final FileObject source;
+        final JarIndex index;
+
+        Entry(FileObject source, JarIndex index) {
+            this.source = source;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Returns the index read from the given file, or null if we haven't got
+     * one.
+     */
+    synchronized JarIndex get(String key, FileObject source) {
+        Entry entry = indexes.get(key);
+        return entry != null && entry.source == source ? entry.index : null;
+    }
+
+    synchronized void put(String key, FileObject source, JarIndex index) {
+        indexes.put(key, new Entry(source, index));
+    }
+
+    synchronized void invalidate(String key) {
+        indexes.remove(key);
+    }
+
+    synchronized void invalidatePrefix(String prefix) {
+        Iterator<String> it = indexes.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput figures for one of the class server's listening sockets.
+ *
+ * @author trasukg
+ */
+class ListenerStats {
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    void accepted() {
+        connections.incrementAndGet();
+    }
+
+    /**
+     * A response has been sent in full.
+     */
+    void served(long bytes) {
+        requests.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    long getConnections() {
+        return connections.get();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+}
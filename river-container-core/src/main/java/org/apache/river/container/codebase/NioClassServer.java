@@ -0,0 +1,627 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.river.container.Init;
+import org.apache.river.container.FileUtility;
+import org.apache.river.container.Injected;
+import org.apache.river.container.InjectionStyle;
+import org.apache.river.container.MessageNames;
+import org.apache.river.container.Shutdown;
+import org.apache.river.container.work.WorkManager;
+
+/**
+ * Non-blocking version of the {@link ClassServer}. Rather than handing each
+ * connection to its own thread, it runs a small, fixed number of selector
+ * loops ('ioThreads' in class-server.properties, default 2) that read the
+ * requests and write the responses without blocking. There's a listening
+ * socket for each of the 'listenAddresses' (all interfaces if there are
+ * none), all on the same port, and they're shared out among the loops; a
+ * loop that accepts a connection deals it out round-robin to all the loops.
+ * Pipelined requests are answered in turn from the connection's request
+ * buffer, and each loop closes connections that have sat idle for longer than
+ * the keep-alive timeout.
+ * <p>
+ * The loops themselves never do anything that might block: working out a
+ * response (which can mean hashing or reading a whole jar) and reading the
+ * next part of a streamed body both go to a small, fixed number of worker
+ * tasks on the container's WorkManager, and the connection sits out of the
+ * selector until the work is done. A connection
+ * over the admission limits gets its 503 through the same non-blocking
+ * writes as any other response.
+ * <p>
+ * It's a drop-in replacement for ClassServer; just name this class instead
+ * of ClassServer as the codebase component in the profile's config.xml.
+ *
+ * @author trasukg
+ */
+public class NioClassServer extends AbstractClassServer {
+
+    private static final Logger logger =
+            Logger.getLogger(NioClassServer.class.getName(), MessageNames.BUNDLE_NAME);
+    private static final int DEFAULT_IO_THREADS = 2;
+    private static final int DEFAULT_WORKER_THREADS = 4;
+    @Injected(style = InjectionStyle.BY_TYPE)
+    WorkManager workManager = null;
+    @Injected(Strings.CLASS_SERVER_PROPERTIES)
+    Properties properties;
+    @Injected(style = InjectionStyle.BY_TYPE)
+    FileUtility fileUtility = null;
+    private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+    private IoLoop[] loops;
+    /**
+     * Work the I/O loops mustn't block on, waiting for a worker. At most
+     * 'workerThreads' (default 4) workers run at once, so the server's thread
+     * count doesn't grow with the number of clients.
+     */
+    private final Queue<Runnable> work = new LinkedList<Runnable>();
+    private int maxWorkers = DEFAULT_WORKER_THREADS;
+    private int workers = 0;
+    private ClassLoader contextLoader = null;
+    private volatile boolean running = false;
+
+    @Init
+    public void init() {
+        configure(properties);
+        scheduleHostRefresh();
+        try {
+            maxWorkers = intProperty(properties, Strings.WORKER_THREADS, DEFAULT_WORKER_THREADS);
+            contextLoader = Thread.currentThread().getContextClassLoader();
+            loops = new IoLoop[intProperty(properties, Strings.IO_THREADS, DEFAULT_IO_THREADS)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(i);
+            }
+            for (InetAddress address : listenAddresses(properties)) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.socket().setReuseAddress(true);
+                servers.add(server);
+                if (servers.size() == 1) {
+                    bindToFirstFreePort(server.socket(), address, properties);
+                } else {
+                    bind(server.socket(), address, getPort());
+                }
+                server.configureBlocking(false);
+                IoLoop loop = loops[(servers.size() - 1) % loops.length];
+                server.register(loop.selector, SelectionKey.OP_ACCEPT,
+                        listenerStats(server.socket()));
+            }
+            running = true;
+            for (IoLoop loop : loops) {
+                workManager.queueTask(contextLoader, loop);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, MessageNames.CLASS_SERVER_INIT_FAILED, ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Close the server socket and the selectors, causing the I/O threads to
+     * terminate.
+     */
+    @Shutdown
+    public synchronized void terminate() {
+        running = false;
+        stopHostRefresh();
+        for (ServerSocketChannel server : servers) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_DURING_SHUTDOWN, e);
+            }
+            logger.log(Level.INFO, MessageNames.CLASS_SERVER_TERMINATED,
+                    new Object[]{server.socket().getLocalSocketAddress(),
+                        server.socket().getLocalPort()});
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Queue work for a worker, starting another worker on the WorkManager if
+     * there are fewer than 'workerThreads' running.
+     *
+     * @throws RejectedExecutionException if the server is shutting down.
+     */
+    private void execute(Runnable task) {
+        synchronized (work) {
+            if (!running) {
+                throw new RejectedExecutionException();
+            }
+            work.add(task);
+            if (workers >= maxWorkers) {
+                return;
+            }
+            workers++;
+        }
+        workManager.queueTask(contextLoader, new Runnable() {
+
+            @Override
+            public void run() {
+                for (;;) {
+                    Runnable next;
+                    synchronized (work) {
+                        next = work.poll();
+                        if (next == null) {
+                            workers--;
+                            return;
+                        }
+                    }
+                    next.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    WorkManager getWorkManager() {
+        return workManager;
+    }
+
+    @Override
+    FileUtility getFileUtility() {
+        return fileUtility;
+    }
+
+    @Override
+    public int getPort() {
+        return servers.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * Per-connection state.
+     */
+    private static class Connection {
+
+        final SocketChannel channel;
+        final InetAddress client;
+        /**
+         * Figures for the listener that accepted the connection.
+         */
+        final ListenerStats stats;
+
+        Connection(SocketChannel channel, ListenerStats stats) {
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress();
+            this.stats = stats;
+        }
+
+        /**
+         * A connection that wasn't admitted, and only gets the 503.
+         */
+        Connection(SocketChannel channel, ListenerStats stats, CodebaseResponse rejection) {
+            this(channel, stats);
+            response = rejection;
+            rejected = true;
+        }
+
+        /**
+         * Bytes received but not yet answered; may hold several pipelined
+         * requests.
+         */
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        final CodebaseRequest parser = new CodebaseRequest();
+        CodebaseResponse response = null;
+        long lastActive = System.currentTimeMillis();
+        /**
+         * When a throttled response may carry on writing.
+         */
+        long resumeAt = 0;
+        /**
+         * End of the request head that's being answered.
+         */
+        int requestEnd = 0;
+        /**
+         * A worker has the connection; the loop leaves it alone until it's
+         * handed back.
+         */
+        boolean busy = false;
+        /**
+         * The worker couldn't produce the response, or read its body.
+         */
+        volatile boolean failed = false;
+        boolean rejected = false;
+    }
+
+    /**
+     * One selector and the thread that services it.
+     */
+    private class IoLoop implements Runnable {
+
+        final Selector selector;
+        final Queue<Connection> newConnections =
+                new ConcurrentLinkedQueue<Connection>();
+        /**
+         * Connections that workers have finished with.
+         */
+        final Queue<SelectionKey> handedBack =
+                new ConcurrentLinkedQueue<SelectionKey>();
+        /**
+         * Connections waiting for their application's budget to let them
+         * write again.
+         */
+        final List<SelectionKey> throttled = new ArrayList<SelectionKey>();
+        /**
+         * Loop that gets the next connection this one accepts.
+         */
+        private int nextLoop;
+
+        IoLoop(int index) throws IOException {
+            selector = Selector.open();
+            nextLoop = index;
+        }
+
+        void handOver(Connection conn) {
+            newConnections.add(conn);
+            selector.wakeup();
+        }
+
+        void handBack(SelectionKey key) {
+            handedBack.add(key);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long nextSweep = System.currentTimeMillis() + sweepInterval();
+                while (running) {
+                    selector.select(selectTimeout());
+                    registerNewConnections();
+                    resumeHandedBack();
+                    long now = System.currentTimeMillis();
+                    resumeThrottled(now);
+                    if (now >= nextSweep) {
+                        closeIdleConnections(now);
+                        nextSweep = now + sweepInterval();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Shutting down.
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.SEVERE, MessageNames.CLASS_SERVER_ERROR_ACCEPTING_CONNECTIONS, e);
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = sweepInterval();
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : throttled) {
+                long wait = ((Connection) key.attachment()).resumeAt - now;
+                timeout = Math.max(1, Math.min(timeout, wait));
+            }
+            return timeout;
+        }
+
+        /**
+         * Carry on writing for the throttled connections whose wait is over.
+         */
+        private void resumeThrottled(long now) {
+            if (throttled.isEmpty()) {
+                return;
+            }
+            List<SelectionKey> ready = new ArrayList<SelectionKey>();
+            Iterator<SelectionKey> keys = throttled.iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                if (!key.isValid()) {
+                    keys.remove();
+                } else if (((Connection) key.attachment()).resumeAt <= now) {
+                    keys.remove();
+                    ready.add(key);
+                }
+            }
+            for (SelectionKey key : ready) {
+                write(key);
+            }
+        }
+
+        private void registerNewConnections() {
+            Connection conn;
+            while ((conn = newConnections.poll()) != null) {
+                if (!conn.rejected) {
+                    admission.dequeued();
+                }
+                try {
+                    conn.channel.configureBlocking(false);
+                    // A file body follows the head separately; see ClassServer.
+                    conn.channel.socket().setTcpNoDelay(true);
+                    conn.channel.register(selector, conn.rejected
+                            ? SelectionKey.OP_WRITE : SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    close(conn.channel);
+                    if (!conn.rejected) {
+                        admission.release(conn.client);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Carry on with the connections that workers have handed back.
+         */
+        private void resumeHandedBack() {
+            SelectionKey key;
+            while ((key = handedBack.poll()) != null) {
+                Connection conn = (Connection) key.attachment();
+                conn.busy = false;
+                if (!key.isValid() || conn.failed) {
+                    close(key);
+                } else {
+                    write(key);
+                }
+            }
+        }
+
+        /**
+         * Have a worker thread produce the response to the request that's just been
+         * parsed, or read the next part of the response's body, then hand
+         * the connection back to this loop.
+         */
+        private void dispatch(final SelectionKey key) {
+            final Connection conn = (Connection) key.attachment();
+            conn.busy = true;
+            key.interestOps(0);
+            try {
+                execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            if (conn.response == null) {
+                                CodebaseResponse response = respond(conn.parser,
+                                        conn.client, conn.channel.socket().getPort());
+                                response.deferReads();
+                                // Move any pipelined requests down to the start.
+                                ByteBuffer buf = conn.request;
+                                buf.flip();
+                                buf.position(conn.requestEnd);
+                                buf.compact();
+                                conn.response = response;
+                            } else {
+                                conn.response.fill();
+                            }
+                        } catch (Exception e) {
+                            logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_WRITING_RESPONSE, e);
+                            conn.failed = true;
+                        }
+                        handBack(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                close(key);
+            }
+        }
+
+        private void accept(SelectionKey key) throws IOException {
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            ListenerStats stats = (ListenerStats) key.attachment();
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                stats.accepted();
+                Connection conn;
+                if (admission.admit(channel.socket().getInetAddress())) {
+                    admission.queued();
+                    conn = new Connection(channel, stats);
+                } else {
+                    conn = new Connection(channel, stats,
+                            new CodebaseResponse(admission.rejection(), false));
+                }
+                loops[nextLoop].handOver(conn);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            try {
+                if (channel.read(conn.request) < 0) {
+                    close(key);
+                    return;
+                }
+                conn.lastActive = System.currentTimeMillis();
+                process(key);
+            } catch (IOException e) {
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_WRITING_RESPONSE, e);
+                close(key);
+            }
+        }
+
+        private void write(SelectionKey key) {
+            try {
+                process(key);
+            } catch (IOException e) {
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_WRITING_RESPONSE, e);
+                close(key);
+            }
+        }
+
+        /**
+         * Answer the buffered requests one after another, for as long as the
+         * socket takes the responses without blocking. Then wait for either
+         * more request bytes or room to write.
+         */
+        private void process(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            if (conn.busy) {
+                return;
+            }
+            for (;;) {
+                if (conn.response == null) {
+                    ByteBuffer buf = conn.request;
+                    int end = headEnd(buf.array(), buf.position());
+                    if (end < 0 && buf.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    /* A full buffer without a complete head parses as
+                     nothing at all, which earns a 400. */
+                    conn.parser.parse(buf.array(), 0, Math.max(end, 0));
+                    conn.requestEnd = Math.max(end, 0);
+                    dispatch(key);
+                    return;
+                }
+                if (!conn.response.writeTo(channel)) {
+                    if (conn.response.needsFill()) {
+                        dispatch(key);
+                        return;
+                    }
+                    long wait = conn.response.throttledFor();
+                    if (wait > 0) {
+                        // Over budget; sit it out without selecting.
+                        conn.resumeAt = System.currentTimeMillis() + wait;
+                        key.interestOps(0);
+                        throttled.add(key);
+                    } else {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                conn.response.close();
+                if (conn.rejected) {
+                    discardRequest(conn);
+                    close(key);
+                    return;
+                }
+                completed(conn.response, conn.client, conn.stats);
+                boolean keepAlive = conn.response.keepAlive();
+                conn.response = null;
+                conn.lastActive = System.currentTimeMillis();
+                if (!keepAlive) {
+                    close(key);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * After a 503, throw away whatever part of the request has arrived,
+         * so that closing the socket doesn't reset the connection before the
+         * client has read the answer.
+         */
+        private void discardRequest(Connection conn) {
+            try {
+                conn.channel.socket().shutdownOutput();
+                conn.request.clear();
+                while (conn.channel.read(conn.request) > 0) {
+                    conn.request.clear();
+                }
+            } catch (IOException e) {
+                // The client will just have to try again.
+            }
+        }
+
+        /**
+         * Close the connections that are waiting for a request and haven't
+         * heard from the client within the keep-alive timeout.
+         */
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof Connection)) {
+                    continue;
+                }
+                Connection conn = (Connection) key.attachment();
+                if (!conn.busy && conn.response == null
+                        && now - conn.lastActive > idleTimeout()) {
+                    close(key);
+                }
+            }
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.channel() instanceof SocketChannel) {
+                        close(key);
+                    }
+                }
+                selector.close();
+            } catch (Exception e) {
+                logger.log(Level.FINE, MessageNames.CLASS_SERVER_EXCEPTION_DURING_SHUTDOWN, e);
+            }
+        }
+    }
+
+    private long sweepInterval() {
+        return Math.min(1000, idleTimeout());
+    }
+
+    /**
+     * Close a connection along with whatever response it was sending.
+     */
+    private void close(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        if (conn.response != null) {
+            conn.response.close();
+        }
+        if (conn.channel.isOpen()) {
+            close(conn.channel);
+            if (!conn.rejected) {
+                admission.release(conn.client);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Immutable open-addressing table from 'appId/jarName' to the registered
+ * file, looked up straight from the bytes of the request so that serving a
+ * jar doesn't need to build any Strings for the path. The class server builds
+ * a new index whenever a context or jar table changes, and publishes it the
+ * same copy-on-write way as the tables themselves.
+ *
+ * @author trasukg
+ */
+class PathIndex {
+
+    static final PathIndex EMPTY = new PathIndex(new ArrayList<Entry>());
+    private final int[] hashes;
+    private final byte[][] keys;
+    private final Entry[] entries;
+    private final int mask;
+
+    /**
+     * One registered jar.
+     */
+    static class Entry {
+
+        /**
+         * 'appId/jarName', as used for the cache keys.
+         */
+        final String key;
+        final FileObject file;
+        final ClassServerCodebaseContext context;
+
+        Entry(String key, FileObject file, ClassServerCodebaseContext context) {
+            this.key = key;
+            this.file = file;
+            this.context = context;
+        }
+    }
+
+    private PathIndex(List<Entry> list) {
+        int size = 4;
+        while (size < list.size() * 2) {
+            size <<= 1;
+        }
+        hashes = new int[size];
+        keys = new byte[size][];
+        entries = new Entry[size];
+        mask = size - 1;
+        for (Entry entry : list) {
+            byte[] key = entry.key.getBytes(CodebaseRequest.ISO_8859_1);
+            int hash = hash(key, 0, key.length, 0);
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            keys[slot] = key;
+            entries[slot] = entry;
+        }
+    }
+
+    /**
+     * Index all the jars in the given contexts.
+     */
+    static PathIndex build(Map<String, ClassServerCodebaseContext> contexts) {
+        List<Entry> list = new ArrayList<Entry>();
+        for (ClassServerCodebaseContext context : contexts.values()) {
+            for (Map.Entry<String, FileObject> e : context.files().entrySet()) {
+                list.add(new Entry(context.getAppId() + Strings.SLASH + e.getKey(),
+                        e.getValue(), context));
+            }
+        }
+        return new PathIndex(list);
+    }
+
+    private static int hash(byte[] buf, int start, int end, int h) {
+        for (int i = start; i < end; i++) {
+            h = 31 * h + (buf[i] & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * Find the jar whose appId is buf[appStart, appEnd) and whose name is
+     * buf[jarStart, jarEnd).
+     *
+     * @return The entry, or null if there's no such jar.
+     */
+    Entry lookup(byte[] buf, int appStart, int appEnd, int jarStart, int jarEnd) {
+        int hash = hash(buf, jarStart, jarEnd, 31 * hash(buf, appStart, appEnd, 0) + '/');
+        int length = appEnd - appStart + 1 + jarEnd - jarStart;
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keys[slot].length == length
+                    && matches(keys[slot], buf, appStart, appEnd, jarStart, jarEnd)) {
+                return entries[slot];
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] key, byte[] buf, int appStart, int appEnd,
+            int jarStart, int jarEnd) {
+        int k = 0;
+        for (int i = appStart; i < appEnd; i++) {
+            if (key[k++] != buf[i]) {
+                return false;
+            }
+        }
+        if (key[k++] != '/') {
+            return false;
+        }
+        for (int i = jarStart; i < jarEnd; i++) {
+            if (key[k++] != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What the class server has been asked for and how it went, for JMX: latency
+ * and response size histograms for each application and each jar, counts of
+ * each status code, and the last few requests. Recording a request takes a
+ * few atomic increments and no locks (apart from a moment on its slot in
+ * the recent-request ring), and never looks up a host name.
+ *
+ * @author trasukg
+ */
+class RequestMetrics {
+
+    static final int DEFAULT_RECENT_REQUESTS = 100;
+    static final int DEFAULT_TOP_JARS = 10;
+    private final AtomicLongArray statusCounts = new AtomicLongArray(600);
+    private final ConcurrentMap<String, Timings> apps =
+            new ConcurrentHashMap<String, Timings>();
+    private final ConcurrentMap<String, Timings> jars =
+            new ConcurrentHashMap<String, Timings>();
+    private final Recent[] recent;
+    private final AtomicLong sequence = new AtomicLong();
+    private final int topJars;
+
+    /**
+     * Latency (in microseconds) and size histograms for one application or
+     * jar.
+     */
+    private static class Timings {
+
+        final Histogram latency = new Histogram();
+        final Histogram size = new Histogram();
+
+        void record(long micros, long bytes) {
+            latency.record(micros);
+            size.record(bytes);
+        }
+    }
+
+    /**
+     * One slot in the recent-request ring; overwritten in place.
+     */
+    private static class Recent {
+
+        long time;
+        InetAddress client;
+        int method;
+        String path;
+        int status;
+        long bytes;
+        long micros;
+    }
+
+    /**
+     * @param recentRequests How many requests to remember.
+     * @param topJars How many jars to list in getTopJars().
+     */
+    RequestMetrics(int recentRequests, int topJars) {
+        recent = new Recent[Math.max(recentRequests, 0)];
+        for (int i = 0; i < recent.length; i++) {
+            recent[i] = new Recent();
+        }
+        this.topJars = topJars;
+    }
+
+    /**
+     * Record a response that has been sent in full.
+     */
+    void record(CodebaseResponse response, InetAddress client, long bytes) {
+        long micros = (System.nanoTime() - response.started) / 1000;
+        if (response.status > 0 && response.status < statusCounts.length()) {
+            statusCounts.incrementAndGet(response.status);
+        }
+        if (response.appId != null) {
+            timings(apps, response.appId).record(micros, bytes);
+            timings(jars, response.path).record(micros, bytes);
+        }
+        if (recent.length > 0) {
+            Recent slot = recent[(int) (sequence.getAndIncrement() % recent.length)];
+            synchronized (slot) {
+                slot.time = System.currentTimeMillis();
+                slot.client = client;
+                slot.method = response.method;
+                slot.path = response.path;
+                slot.status = response.status;
+                slot.bytes = bytes;
+                slot.micros = micros;
+            }
+        }
+    }
+
+    private static Timings timings(ConcurrentMap<String, Timings> map, String key) {
+        Timings timings = map.get(key);
+        if (timings == null) {
+            Timings created = new Timings();
+            timings = map.putIfAbsent(key, created);
+            if (timings == null) {
+                timings = created;
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * Drop the figures for an application that's been undeployed or
+     * redeployed.
+     */
+    void forget(String appId) {
+        apps.remove(appId);
+        Iterator<String> it = jars.keySet().iterator();
+        String prefix = appId + Strings.SLASH;
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (int i = 0; i < statusCounts.length(); i++) {
+            long n = statusCounts.get(i);
+            if (n > 0) {
+                counts.put(Integer.toString(i), n);
+            }
+        }
+        return counts;
+    }
+
+    Map<String, HistogramSnapshot> getLatency(boolean byJar) {
+        Map<String, HistogramSnapshot> snapshots = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Timings> e : (byJar ? jars : apps).entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().latency.snapshot());
+        }
+        return snapshots;
+    }
+
+    Map<String, HistogramSnapshot> getSize(boolean byJar) {
+        Map<String, HistogramSnapshot> snapshots = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Timings> e : (byJar ? jars : apps).entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().size.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * The most requested jars, busiest first.
+     */
+    List<JarRequestCount> getTopJars() {
+        List<JarRequestCount> all = new ArrayList<JarRequestCount>();
+        for (Map.Entry<String, Timings> e : jars.entrySet()) {
+            Histogram size = e.getValue().size;
+            all.add(new JarRequestCount(e.getKey(), size.getCount(), size.getSum()));
+        }
+        Collections.sort(all, new Comparator<JarRequestCount>() {
+
+            @Override
+            public int compare(JarRequestCount a, JarRequestCount b) {
+                if (a.getRequests() != b.getRequests()) {
+                    return a.getRequests() > b.getRequests() ? -1 : 1;
+                }
+                return a.getPath().compareTo(b.getPath());
+            }
+        });
+        return all.size() > topJars ? new ArrayList<JarRequestCount>(all.subList(0, topJars)) : all;
+    }
+
+    /**
+     * The recent requests, newest first, one line each: time, client
+     * address, method, path, status, bytes sent and milliseconds taken.
+     */
+    List<String> getRecentRequests() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        List<String> lines = new ArrayList<String>();
+        long next = sequence.get();
+        for (long i = next - 1; i >= 0 && i >= next - recent.length; i--) {
+            Recent slot = recent[(int) (i % recent.length)];
+            synchronized (slot) {
+                if (slot.client == null) {
+                    continue;
+                }
+                lines.add(format.format(new Date(slot.time))
+                        + ' ' + slot.client.getHostAddress()
+                        + ' ' + methodName(slot.method)
+                        + ' ' + (slot.path == null ? "-" : slot.path)
+                        + ' ' + slot.status
+                        + ' ' + slot.bytes
+                        + ' ' + String.format(Locale.ROOT, "%.1f", slot.micros / 1000.0));
+            }
+        }
+        return lines;
+    }
+
+    private static String methodName(int method) {
+        switch (method) {
+            case CodebaseRequest.GET:
+                return "GET";
+            case CodebaseRequest.HEAD:
+                return "HEAD";
+            default:
+                return "-";
+        }
+    }
+}
@@ -23,11 +23,37 @@ package org.apache.river.container.codebase;
  */
 public class Strings {
     public static final String
+            ACCEPT_BACKLOG="acceptBacklog",
+            ACCEPT_THREADS="acceptThreads",
+            APP_BANDWIDTH="appBandwidth",
+            APP_MAX_DOWNLOADS="appMaxDownloads",
+            BANDWIDTH="bandwidth",
+            BUNDLES="bundles",
+            BUNDLE_COMPRESSION="bundleCompression",
+            BUNDLE_DIRECTORY="bundleDirectory",
+            CACHE_CONTROL="cacheControl",
+            CACHE_SIZE="cacheSize",
+            CLASS_SERVER="class-server",
             CLASS_SERVER_PROPERTIES="class-server.properties",
             COLON=":",
+            COMPRESSION="compression",
+            CONTENT_ADDRESSED_URLS="contentAddressedUrls",
             DUMMY_ANNOTATION="http://www.demo.com/unknown.jar",
+            ENTRY_REQUESTS="entryRequests",
+            FILE="file",
+            HOST="host",
+            HOST_REFRESH_INTERVAL="hostRefreshInterval",
             HTTP_COLON="http:",
             INITIAL_PORT="initialPort",
+            IO_THREADS="ioThreads",
+            KEEP_ALIVE_TIMEOUT="keepAliveTimeout",
+            LISTEN_ADDRESSES="listenAddresses",
+            MAX_CONNECTIONS="maxConnections",
+            MAX_CONNECTIONS_PER_CLIENT="maxConnectionsPerClient",
+            RECENT_REQUESTS="recentRequests",
+            RETRY_AFTER="retryAfter",
             SLASH="/",
-            SLASH_SLASH="//";
+            SLASH_SLASH="//",
+            TOP_JARS="topJars",
+            WORKER_THREADS="workerThreads";
 }
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+/**
+ * Token bucket that paces the bytes written for one application's downloads.
+ * Tokens (bytes) come in at the current rate, up to a quarter of a second's
+ * worth, and writers take them a chunk at a time. A rate of zero means no
+ * limit. The rate can be changed at any time, which is how the class server
+ * shares its total bandwidth out among the applications.
+ *
+ * @author trasukg
+ */
+class TokenBucket {
+
+    /**
+     * Smallest grant worth writing; with fewer tokens than this the writer
+     * waits rather than dribbling out tiny packets.
+     */
+    static final long MIN_GRANT = 8 * 1024;
+    private long rate = 0;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate Bytes per second; 0 for no limit.
+     */
+    synchronized void setRate(long rate) {
+        refill();
+        boolean wasUnlimited = this.rate <= 0;
+        this.rate = rate;
+        // Start a newly limited bucket full, so the first chunk goes straight out.
+        tokens = wasUnlimited ? capacity() : Math.min(tokens, capacity());
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    private double capacity() {
+        return Math.max(rate / 4, MIN_GRANT);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1e9);
+        }
+        lastRefill = now;
+    }
+
+    private long minGrant(long max) {
+        return Math.min(max, MIN_GRANT);
+    }
+
+    /**
+     * Take up to 'max' bytes' worth of tokens.
+     *
+     * @return The bytes that may be written now; 0 if the writer has to wait.
+     */
+    synchronized long take(long max) {
+        if (rate <= 0) {
+            return max;
+        }
+        refill();
+        long grant = (long) Math.min(max, tokens);
+        if (grant < minGrant(max)) {
+            return 0;
+        }
+        tokens -= grant;
+        return grant;
+    }
+
+    /**
+     * Give back the part of a grant that couldn't be written.
+     */
+    synchronized void refund(long unused) {
+        if (rate > 0 && unused > 0) {
+            tokens = Math.min(capacity(), tokens + unused);
+        }
+    }
+
+    /**
+     * Milliseconds until take(max) will grant something.
+     */
+    synchronized long waitMillis(long max) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        double needed = minGrant(max) - tokens;
+        return needed <= 0 ? 0 : Math.max(1, (long) Math.ceil(needed * 1000 / rate));
+    }
+}
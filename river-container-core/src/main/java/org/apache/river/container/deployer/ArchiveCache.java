@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.deployer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.Strings;
+
+/**
+ * Unpacks service archives into a folder under the profile's work
+ * directory, so that the jars in a service's 'lib' and 'lib-dl' are plain
+ * local files rather than jars nested inside the archive, which the VFS
+ * would have to copy out to its temp area and read through layers of
+ * file objects.
+ * <p>
+ * Each archive is unpacked into a folder named for the archive and a hash
+ * of its content, so deploying the same archive again (including after a
+ * restart) finds it already unpacked, and a changed archive gets a fresh
+ * folder.
+ * <p>
+ * The folders left over from other versions of an archive are deleted the
+ * first time the archive is unpacked after the container starts, before
+ * anything has been deployed from them. A version replaced while the
+ * container is running may still have a service stopping from it, so its
+ * folder stays until the next start.
+ *
+ * @author trasukg
+ */
+class ArchiveCache {
+
+    private static final int BUFFER_SIZE = 8192;
+    private final File directory;
+    /**
+     * Archive names (with the trailing dash) whose old versions have been
+     * cleared away in this run.
+     */
+    private final Set<String> pruned = new HashSet<String>();
+
+    ArchiveCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the folder the archive is unpacked in, unpacking it first if
+     * it isn't there already.
+     */
+    FileObject unpack(FileObject archive) throws IOException {
+        String prefix = archive.getName().getBaseName() + Strings.DASH;
+        File target = new File(directory, prefix + hash(archive));
+        synchronized (pruned) {
+            if (pruned.add(prefix)) {
+                prune(prefix, target);
+            }
+        }
+        if (!target.isDirectory()) {
+            extract(archive, target);
+        }
+        return VFS.getManager().toFileObject(target);
+    }
+
+    /**
+     * Delete the folders of other versions of the archive, i.e. anything
+     * named for the archive plus a hash, other than 'current'.
+     */
+    private void prune(String prefix, File current) {
+        File[] folders = directory.listFiles();
+        if (folders == null) {
+            return;
+        }
+        for (File folder : folders) {
+            String name = folder.getName();
+            if (folder.isDirectory() && !folder.equals(current)
+                    && name.startsWith(prefix)
+                    && name.substring(prefix.length()).matches("[0-9a-f]{16}")) {
+                delete(folder);
+            }
+        }
+    }
+
+    /**
+     * The first 16 hex digits of the SHA-256 of the archive's content.
+     */
+    static String hash(FileObject archive) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        InputStream in = archive.getContent().getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] hash = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            sb.append(Integer.toHexString((hash[i] >> 4) & 0xf))
+                    .append(Integer.toHexString(hash[i] & 0xf));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unpack into a folder alongside and rename it into place, so a folder
+     * that exists is always complete. If another deployment of the same
+     * archive gets there first, we use its folder.
+     */
+    private static void extract(FileObject archive, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        File temp = File.createTempFile(target.getName(), ".tmp", parent);
+        temp.delete();
+        try {
+            if (!temp.mkdir()) {
+                throw new IOException("Couldn't create " + temp);
+            }
+            String root = temp.getCanonicalPath() + File.separator;
+            ZipInputStream in = new ZipInputStream(archive.getContent().getInputStream());
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    File file = new File(temp, entry.getName());
+                    // Don't let a crafted entry name write outside the folder.
+                    if (!file.getCanonicalPath().startsWith(root)) {
+                        throw new IOException("Entry " + entry.getName()
+                                + " is outside the archive");
+                    }
+                    if (entry.isDirectory()) {
+                        file.mkdirs();
+                        continue;
+                    }
+                    file.getParentFile().mkdirs();
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        for (int n; (n = in.read(buffer)) > 0;) {
+                            out.write(buffer, 0, n);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    if (entry.getTime() != -1) {
+                        file.setLastModified(entry.getTime());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (!temp.renameTo(target) && !target.isDirectory()) {
+                throw new IOException("Couldn't rename " + temp + " to " + target);
+            }
+        } finally {
+            delete(temp);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -80,20 +80,20 @@ public class ClasspathFilterBuilder {
                 String resourceName = VirtualFileSystemClassLoader.classToResourceName(node.toString());
                 log.fine("Building ResourceAcceptor with string '" + resourceName + "'");
                 Acceptor acc = new ResourceAcceptor(resourceName);
-                cpf.getAcceptors().add(acc);
+                cpf.addAcceptor(acc);
             }
             if (node instanceof ASTliteral) {
                 log.fine("Building ResourceAcceptor with string '" + node.toString() + "'");
                 ASTliteral lNode=(ASTliteral) node;
                 Acceptor acc = new ResourceAcceptor((String)lNode.getValue());
-                cpf.getAcceptors().add(acc);
+                cpf.addAcceptor(acc);
             }
         }
         /* If there were no filter clauses, hence no acceptors, allow all
         patterns.
          */
         if (cpf.getAcceptors().isEmpty()) {
-            cpf.getAcceptors().add(new AllAcceptor());
+            cpf.addAcceptor(new AllAcceptor());
         }
         return cpf;
     }
@@ -95,6 +95,18 @@ public class StarterServiceDeployer  {
     public void setConfig(String config) {
         this.config = config;
     }
+    /* Unpack service archives under the work directory rather than mounting
+     them as jar file systems. */
+    private boolean unpackArchives = true;
+    private ArchiveCache archiveCache = null;
+
+    public boolean isUnpackArchives() {
+        return unpackArchives;
+    }
+
+    public void setUnpackArchives(boolean unpackArchives) {
+        this.unpackArchives = unpackArchives;
+    }
     @Injected(style = InjectionStyle.BY_TYPE)
     private PropertiesFileReader propertiesFileReader = null;
     @Injected(style = InjectionStyle.BY_TYPE)
@@ -116,7 +128,7 @@ public class StarterServiceDeployer  {
         for (int i = 0; i < codebaseNode.jjtGetNumChildren(); i++) {
             String jarFile = codebaseNode.jjtGetChild(i).toString();
             FileObject fo = fileUtility.getLibDirectory().resolveFile(jarFile);
-            codebaseContext.addFile(fo);
+            codebaseContext.addPlatformFile(fo);
             log.log(Level.FINE, MessageNames.ADDED_PLATFORM_CODEBASE_JAR,
                     jarFile);
         }
@@ -360,14 +372,41 @@ public class StarterServiceDeployer  {
         ApplicationEnvironment env = new ApplicationEnvironment();
         env.setApplicationManagerName(managerName);
         env.setServiceArchive(serviceArchive);
-        env.setServiceRoot(
-                serviceArchive.getFileSystem().getFileSystemManager().createFileSystem(Strings.JAR, serviceArchive));
+        env.setServiceRoot(serviceRootFor(serviceArchive));
         String serviceName = findServiceName(env.getServiceArchive(), env.getServiceRoot());
         env.setServiceName(serviceName);
         ServiceLifeCycle slc = StarterServiceLifeCycleSM.newStarterServiceLifeCycle(env, this);
         return slc;
     }
 
+    /**
+     * Find the root of the service archive's contents: the folder it's
+     * unpacked in, if we're unpacking archives and that works, otherwise
+     * the archive mounted as a jar file system.
+     */
+    private FileObject serviceRootFor(FileObject serviceArchive) throws IOException {
+        if (unpackArchives) {
+            try {
+                synchronized (this) {
+                    if (archiveCache == null) {
+                        FileObject dir = fileUtility.getWorkingDirectory(Strings.ARCHIVES);
+                        archiveCache = new ArchiveCache(new File(dir.getURL().toURI()));
+                    }
+                }
+                FileObject root = archiveCache.unpack(serviceArchive);
+                log.log(Level.FINE, MessageNames.STARTER_SERVICE_DEPLOYER_ARCHIVE_UNPACKED,
+                        new Object[]{serviceArchive.getName().getBaseName(), root});
+                return root;
+            } catch (Exception ex) {
+                log.log(Level.WARNING, MessageNames.STARTER_SERVICE_DEPLOYER_ARCHIVE_UNPACK_FAILED,
+                        serviceArchive.getName().getBaseName());
+                log.log(Level.FINE, MessageNames.EXCEPTION_THROWN, Utils.stackTrace(ex));
+            }
+        }
+        return serviceArchive.getFileSystem().getFileSystemManager()
+                .createFileSystem(Strings.JAR, serviceArchive);
+    }
+
     private String findServiceName(FileObject serviceArchive, FileObject serviceRoot) {
         if (serviceArchive != null) {
             return serviceArchive.getName().getBaseName();
@@ -389,6 +428,8 @@ public class StarterServiceDeployer  {
                         new Certificate[0]);
         log.log(Level.INFO, MessageNames.CODESOURCE_IS,
                 new Object[]{env.getServiceName(), serviceCodeSource});
+        // A service that's being started again gets a fresh class loader.
+        releaseServiceClassLoader(env);
         VirtualFileSystemClassLoader cl = createServiceClassloader(env.getServiceRoot(), serviceCodeSource);
         env.setClassLoader(cl);
 
@@ -602,6 +643,23 @@ public class StarterServiceDeployer  {
 
     }
     
+    /**
+     * Close the service's class loader, and the jar files it holds open, once
+     * the service has stopped.
+     */
+    void releaseServiceClassLoader(ApplicationEnvironment env) {
+        VirtualFileSystemClassLoader cl = env.getClassLoader();
+        if (cl == null) {
+            return;
+        }
+        env.setClassLoader(null);
+        try {
+            cl.close();
+        } catch (IOException ex) {
+            log.log(Level.FINE, MessageNames.EXCEPTION_THROWN, Utils.stackTrace(ex));
+        }
+    }
+
     void createWorkDirectoryFor(ApplicationEnvironment env) throws IOException {
         FileObject managerDir=fileUtility.getWorkingDirectory(env.getApplicationManagerName());
         FileObject workingDir=managerDir.resolveFile(env.getServiceName());
@@ -215,6 +215,7 @@ public class StarterServiceLifeCycleSM {
                     try {
                         deployer.stopService(appEnv);
                         if(appEnv.getWorkingContext().getActiveThreadCount()==0) {
+                            deployer.releaseServiceClassLoader(appEnv);
                             eventProxy.stopSucceeded();
                         } else {
                             eventProxy.stopFailed();
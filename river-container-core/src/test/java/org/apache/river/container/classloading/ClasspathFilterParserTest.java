@@ -123,4 +123,23 @@ public class ClasspathFilterParserTest {
         assertTrue(cpf.acceptsResource("org/apache/XYZ.class"));
         assertTrue(cpf.acceptsResource("org/apache/DEF.class"));
      }
+
+    /**
+    An acceptor added after the filter has been used takes effect, and the
+    acceptor list can't be changed behind the filter's back.
+    */
+    @Test
+    public void testAddAcceptorAfterUse() throws Exception {
+        ClasspathFilter cpf = new ClasspathFilter();
+        cpf.addAcceptor(new ResourceAcceptor("org/apache/ABC.class"));
+        assertFalse(cpf.acceptsResource("org/apache/DEF.class"));
+        cpf.addAcceptor(new ResourceAcceptor("org/apache/DEF.class"));
+        assertTrue(cpf.acceptsResource("org/apache/DEF.class"));
+        try {
+            cpf.getAcceptors().add(new AllAcceptor());
+            fail("Acceptor list could be changed");
+        } catch (UnsupportedOperationException ex) {
+        }
+        assertFalse(cpf.acceptsResource("org/apache/XYZ.class"));
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author trasukg
+ */
+public class PackageIndexTest {
+
+    @Test
+    public void testCandidatesInClasspathOrder() {
+        PackageIndex UUT = new PackageIndex()
+                .with(0, Arrays.asList("", "org", "org/apache"))
+                .with(1, null)
+                .with(2, Arrays.asList("org/apache", "META-INF"));
+        assertArrayEquals(new int[]{0, 1, 2}, UUT.candidates("org/apache/ABC.class"));
+        assertArrayEquals(new int[]{0, 1}, UUT.candidates("org/XYZ.class"));
+        assertArrayEquals(new int[]{0, 1}, UUT.candidates("/top.properties"));
+        assertArrayEquals(new int[]{1, 2}, UUT.candidates("META-INF/MANIFEST.MF"));
+        // Nobody lists it, so only the jar we couldn't list might have it.
+        assertArrayEquals(new int[]{1}, UUT.candidates("com/sun/DEF.class"));
+    }
+
+    @Test
+    public void testEmptyIndexHasNoCandidates() {
+        assertEquals(0, new PackageIndex().candidates("org/apache/ABC.class").length);
+    }
+}
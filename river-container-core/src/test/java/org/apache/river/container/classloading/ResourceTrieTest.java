@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.classloading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author trasukg
+ */
+public class ResourceTrieTest {
+
+    private static final String[] PATTERNS = {
+        "org/apache/ABC.class", "org/apache/DEF.class", "META-INF/*",
+        "org/*/XYZ.class", "org/apache/*", "*", "", "/", "/lead", "a//b"
+    };
+    private static final String[] PATHS = {
+        "org/apache/ABC.class", "org/apache/XYZ.class", "org/river/XYZ.class",
+        "org/apache/sub/ABC.class", "META-INF/start.properties", "META-INF",
+        "META-INF/", "META-INF/a/b", "ABC.class", "", "/", "//", "/lead",
+        "lead", "a//b", "a/b", "a/x/b", "org/apache/ABC.class/", "org/apache"
+    };
+
+    /**
+     The trie has to give the same answer as asking each ResourceAcceptor in
+     turn, for every combination of patterns we can think of.
+     */
+    @Test
+    public void testAgreesWithResourceAcceptors() {
+        for (int mask = 1; mask < (1 << PATTERNS.length); mask++) {
+            List<Acceptor> acceptors = new ArrayList<Acceptor>();
+            for (int i = 0; i < PATTERNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    acceptors.add(new ResourceAcceptor(PATTERNS[i]));
+                }
+            }
+            ResourceTrie UUT = new ResourceTrie(acceptors);
+            for (String path : PATHS) {
+                boolean expected = false;
+                for (Acceptor a : acceptors) {
+                    expected |= a.acceptsResource(path);
+                }
+                assertEquals(acceptors + " on '" + path + "'",
+                        expected, UUT.acceptsResource(path));
+            }
+        }
+    }
+
+    @Test
+    public void testAllAcceptorAcceptsEverything() {
+        ResourceTrie UUT = new ResourceTrie(Arrays.<Acceptor>asList(
+                new ResourceAcceptor("org/apache/ABC.class"), new AllAcceptor()));
+        assertTrue(UUT.acceptsResource("com/sun/Anything.class"));
+    }
+
+    @Test
+    public void testOtherAcceptorsStillAsked() {
+        Acceptor odd = new Acceptor() {
+
+            public boolean acceptsResource(String resourcePath) {
+                return resourcePath.endsWith(".odd");
+            }
+        };
+        ResourceTrie UUT = new ResourceTrie(Arrays.asList(
+                new ResourceAcceptor("org/apache/ABC.class"), odd));
+        assertTrue(UUT.acceptsResource("org/apache/ABC.class"));
+        assertTrue(UUT.acceptsResource("x/y.odd"));
+        assertFalse(UUT.acceptsResource("x/y.even"));
+    }
+}
@@ -20,8 +20,12 @@ import org.apache.river.container.classloading.VirtualFileSystemClassLoader;
 import java.net.URL;
 import java.io.InputStream;
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemManager;
+import org.apache.commons.vfs2.FileUtil;
 import org.apache.commons.vfs2.VFS;
 import org.apache.river.container.Bootstrap;
 import org.apache.river.container.LocalizedRuntimeException;
@@ -207,4 +211,171 @@ public class VFSClassLoaderTest {
             
         }
     }
+
+    /**
+     The loader is parallel capable, so several threads can ask for the same
+     classes at once; each class must still be defined exactly once.
+     @throws Exception
+     */
+    @Test
+    public void testConcurrentClassLoading() throws Exception {
+        final VirtualFileSystemClassLoader UUT =
+                new VirtualFileSystemClassLoader(libRoot,
+                VFSClassLoaderTest.class.getClassLoader(), null, true);
+        UUT.addClassPathEntry("reggie-" + JSK_VERSION + ".jar");
+        final String[] names = {
+            "com.sun.jini.reggie.ClassMapper",
+            "com.sun.jini.reggie.EventLease",
+            "com.sun.jini.reggie.Item",
+            "com.sun.jini.reggie.Template",
+            "java.util.List"
+        };
+        final Class[][] loaded = new Class[8][];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[loaded.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int t = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Class[] classes = new Class[names.length];
+                        for (int j = 0; j < names.length; j++) {
+                            classes[j] = UUT.loadClass(names[j]);
+                        }
+                        loaded[t] = classes;
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull("Concurrent load failed: " + failure.get(), failure.get());
+        for (int j = 0; j < names.length; j++) {
+            for (int t = 1; t < loaded.length; t++) {
+                assertSame(names[j], loaded[0][j], loaded[t][j]);
+            }
+        }
+        assertTrue("Class had wrong classloader:" + loaded[0][0].getClassLoader(),
+                loaded[0][0].getClassLoader() == UUT);
+    }
+
+    /**
+     Lookups only go to the jars that hold the resource's package; a package
+     that no jar has finds nothing, and one that several have finds it in
+     each of them, in classpath order.
+     @throws Exception
+     */
+    @Test
+    public void testPackageIndexedLookup() throws Exception {
+        VirtualFileSystemClassLoader UUT =
+                new VirtualFileSystemClassLoader(libRoot, extensionLoader, null);
+        UUT.addClassPathEntry("reggie-" + JSK_VERSION + ".jar");
+        UUT.addClassPathEntry("reggie-dl-" + JSK_VERSION + ".jar");
+        assertNotNull(UUT.findResourceFileObject("com/sun/jini/reggie/ClassMapper.class"));
+        assertNull(UUT.findResourceFileObject("org/nowhere/Nothing.class"));
+        assertEquals(0, UUT.findResourceFileObjects("org/nowhere/Nothing.class").size());
+        List<FileObject> lists = UUT.findResourceFileObjects("META-INF/PREFERRED.LIST");
+        assertEquals(2, lists.size());
+        assertTrue(lists.get(0).getFileSystem().getRoot().getName().getURI(),
+                lists.get(0).getFileSystem().getRoot().getName().getURI()
+                .contains("reggie-" + JSK_VERSION + ".jar"));
+    }
+
+    /**
+     A name that isn't found is remembered as missing, and asking for it
+     again mustn't cost a stack trace; adding to the classpath forgets the
+     misses, since the new jar might have the name.
+     @throws Exception
+     */
+    @Test
+    public void testMissesForgottenWhenClasspathChanges() throws Exception {
+        VirtualFileSystemClassLoader UUT =
+                new VirtualFileSystemClassLoader(libRoot, extensionLoader, null);
+        UUT.addClassPathEntry("reggie-dl-" + JSK_VERSION + ".jar");
+        String name = "com/sun/jini/reggie/RegistrarImpl.class";
+        assertNull(UUT.findResourceFileObject(name));
+        assertNull(UUT.findResourceFileObject(name));
+        for (int i = 0; i < 2; i++) {
+            try {
+                UUT.loadClass("com.sun.jini.reggie.NoSuchClass");
+                fail("Should have thrown ClassNotFoundException");
+            } catch (ClassNotFoundException ex) {
+                assertEquals(0, ex.getStackTrace().length);
+            }
+        }
+        UUT.addClassPathEntry("reggie-" + JSK_VERSION + ".jar");
+        assertNotNull(UUT.findResourceFileObject(name));
+    }
+
+    /**
+     When the jar is a plain local file, classes are read from it directly,
+     and closing the loader closes the jar.
+     @throws Exception
+     */
+    @Test
+    public void testLocalJarClassLoading() throws Exception {
+        File dir = File.createTempFile("vfs-class-loader", "");
+        dir.delete();
+        dir.mkdir();
+        File jar = new File(dir, "reggie-" + JSK_VERSION + ".jar");
+        FileUtil.copyContent(libRoot.resolveFile(jar.getName()),
+                fileSystemManager.toFileObject(jar));
+        try {
+            VirtualFileSystemClassLoader UUT =
+                    new VirtualFileSystemClassLoader(fileSystemManager.toFileObject(dir),
+                    extensionLoader, null);
+            UUT.addClassPathEntry(jar.getName());
+            Class c = UUT.loadClass("com.sun.jini.reggie.ClassMapper");
+            assertTrue("Class had wrong classloader:" + c.getClassLoader(),
+                    c.getClassLoader() == UUT);
+            assertNotNull(UUT.getResource("META-INF/PREFERRED.LIST"));
+            UUT.close();
+        } finally {
+            jar.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     A closed loader keeps the classes it has loaded, but finds nothing new,
+     and says so with a ClassNotFoundException rather than failing on the
+     closed jar.
+     */
+    @Test
+    public void testClosedLoader() throws Exception {
+        File dir = File.createTempFile("vfs-class-loader", "");
+        dir.delete();
+        dir.mkdir();
+        File jar = new File(dir, "reggie-" + JSK_VERSION + ".jar");
+        FileUtil.copyContent(libRoot.resolveFile(jar.getName()),
+                fileSystemManager.toFileObject(jar));
+        try {
+            VirtualFileSystemClassLoader UUT =
+                    new VirtualFileSystemClassLoader(fileSystemManager.toFileObject(dir),
+                    extensionLoader, null);
+            UUT.addClassPathEntry(jar.getName());
+            Class c = UUT.loadClass("com.sun.jini.reggie.ClassMapper");
+            UUT.close();
+            assertSame(c, UUT.loadClass("com.sun.jini.reggie.ClassMapper"));
+            try {
+                UUT.loadClass("com.sun.jini.reggie.RegistrarImpl");
+                fail("Closed loader found a new class");
+            } catch (ClassNotFoundException ex) {
+            }
+            assertNull(UUT.getResource("META-INF/PREFERRED.LIST"));
+            assertFalse(UUT.getResources("META-INF/PREFERRED.LIST").hasMoreElements());
+        } finally {
+            jar.delete();
+            dir.delete();
+        }
+    }
 }
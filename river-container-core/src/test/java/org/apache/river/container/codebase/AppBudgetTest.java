@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import org.apache.river.container.work.WorkManager;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the class server's total bandwidth is shared fairly among the
+ * applications that are downloading.
+ *
+ * @author trasukg
+ */
+public class AppBudgetTest {
+
+    AbstractClassServer server = new AbstractClassServer() {
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        WorkManager getWorkManager() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testFairShare() {
+        server.bandwidth = 1000000;
+        ClassServerCodebaseContext a = (ClassServerCodebaseContext) server.createContext("a");
+        ClassServerCodebaseContext b = (ClassServerCodebaseContext) server.createContext("b");
+        ClassServerCodebaseContext c = (ClassServerCodebaseContext) server.createContext("c");
+        c.setBandwidth(200000);
+
+        assertTrue(a.budget.start());
+        assertEquals(1000000, a.budget.bucket.getRate());
+        assertTrue(b.budget.start());
+        assertTrue(b.budget.start());
+        // Shared by application, not by download.
+        assertEquals(500000, a.budget.bucket.getRate());
+        assertEquals(500000, b.budget.bucket.getRate());
+        assertTrue(c.budget.start());
+        assertEquals(333333, a.budget.bucket.getRate());
+        // Held to its own limit, which is below its share.
+        assertEquals(200000, c.budget.bucket.getRate());
+
+        a.budget.finish();
+        c.budget.finish();
+        assertEquals(1000000, b.budget.bucket.getRate());
+    }
+
+    @Test
+    public void testDownloadLimit() {
+        ClassServerCodebaseContext UUT = (ClassServerCodebaseContext) server.createContext("a");
+        assertFalse(UUT.budget.isLimited());
+        UUT.setMaxDownloads(2);
+        assertTrue(UUT.budget.isLimited());
+        assertTrue(UUT.budget.start());
+        assertTrue(UUT.budget.start());
+        assertFalse(UUT.budget.start());
+        UUT.budget.finish();
+        assertTrue(UUT.budget.start());
+        assertEquals(1, UUT.budget.getRejected());
+    }
+
+    @Test
+    public void testTokenBucketPacing() throws Exception {
+        TokenBucket UUT = new TokenBucket();
+        assertEquals(Long.MAX_VALUE, UUT.take(Long.MAX_VALUE));
+        UUT.setRate(100000);
+        // Starts with a quarter second's worth.
+        assertEquals(25000, UUT.take(Long.MAX_VALUE));
+        assertEquals(0, UUT.take(16384));
+        long wait = UUT.waitMillis(16384);
+        assertTrue("Wait " + wait, wait > 50 && wait <= 82);
+        Thread.sleep(wait);
+        assertTrue(UUT.take(16384) >= TokenBucket.MIN_GRANT);
+    }
+}
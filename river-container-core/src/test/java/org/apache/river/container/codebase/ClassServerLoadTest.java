@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.WorkManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the same download storm against the blocking ClassServer and the
+ * NioClassServer, and checks that the non-blocking server gets through it on
+ * its fixed set of I/O and worker threads. How fast each of them is goes in
+ * ClassServerBenchmark, in the benchmarks module.
+ *
+ * @author trasukg
+ */
+public class ClassServerLoadTest {
+
+    private static final int CLIENTS = 32;
+    private static final int REQUESTS_PER_CLIENT = 25;
+    private static final int JAR_SIZE = 64 * 1024;
+    File jarFile = null;
+    FileObject jarFileObject = null;
+    CountingWorkManager workManager = null;
+
+    @Before
+    public void setUp() throws Exception {
+        jarFile = File.createTempFile("load-test-dl", ".jar");
+        byte[] content = new byte[JAR_SIZE];
+        new Random(0).nextBytes(content);
+        OutputStream out = new FileOutputStream(jarFile);
+        out.write(content);
+        out.close();
+        jarFileObject = VFS.getManager().toFileObject(jarFile);
+        workManager = new CountingWorkManager();
+    }
+
+    @After
+    public void tearDown() {
+        workManager.shutdownNow();
+        jarFile.delete();
+    }
+
+    Properties serverProperties() {
+        Properties props = new Properties();
+        props.setProperty(Strings.INITIAL_PORT, "19180");
+        props.setProperty(Strings.IO_THREADS, "2");
+        props.setProperty(Strings.WORKER_THREADS, "2");
+        // Keep background compression out of the thread counts.
+        props.setProperty(Strings.COMPRESSION, "false");
+        return props;
+    }
+
+    /**
+     * The non-blocking server should answer GET and HEAD and should reject
+     * paths that it doesn't know about.
+     */
+    @Test
+    public void testNioServerResponses() throws Exception {
+        NioClassServer UUT = new NioClassServer();
+        UUT.workManager = workManager;
+        UUT.properties = serverProperties();
+        UUT.init();
+        try {
+            UUT.createContext("app").addFile(jarFileObject);
+            String path = "/app/" + jarFile.getName();
+            byte[] response = fetch(UUT.getPort(), "GET " + path + " HTTP/1.0");
+            assertTrue("Short GET response", response.length > JAR_SIZE);
+            assertTrue(new String(response, 0, 15, "ISO-8859-1").startsWith("HTTP/1.0 200"));
+            response = fetch(UUT.getPort(), "HEAD " + path + " HTTP/1.0");
+            assertEquals("HEAD sent a body", 0, ClassServerTest.body(response).length);
+            response = fetch(UUT.getPort(), "GET /app/nothing.jar HTTP/1.0");
+            assertTrue(new String(response, "ISO-8859-1").startsWith("HTTP/1.0 404"));
+            response = fetch(UUT.getPort(), "PUT " + path + " HTTP/1.0");
+            assertTrue(new String(response, "ISO-8859-1").startsWith("HTTP/1.0 400"));
+        } finally {
+            UUT.terminate();
+        }
+    }
+
+    /**
+     * Hit both servers with the same load. The thread count for the
+     * non-blocking server must stay within its configured number of I/O and
+     * worker threads, however many clients there are.
+     */
+    @Test
+    public void testLoad() throws Exception {
+        ClassServer blocking = new ClassServer();
+        blocking.workManager = workManager;
+        blocking.properties = serverProperties();
+        blocking.init();
+        try {
+            blocking.createContext("app").addFile(jarFileObject);
+            runLoad(blocking.getPort());
+        } finally {
+            blocking.terminate();
+        }
+
+        workManager.shutdownNow();
+        workManager = new CountingWorkManager();
+        NioClassServer nio = new NioClassServer();
+        nio.workManager = workManager;
+        nio.properties = serverProperties();
+        nio.init();
+        try {
+            nio.createContext("app").addFile(jarFileObject);
+            runLoad(nio.getPort());
+        } finally {
+            nio.terminate();
+        }
+        int nioThreads = workManager.executor.getLargestPoolSize();
+        assertTrue("NioClassServer used " + nioThreads + " threads", nioThreads <= 2 + 2);
+    }
+
+    private void runLoad(final int port) throws Exception {
+        final String request = "GET /app/" + jarFile.getName() + " HTTP/1.0";
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < CLIENTS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                            if (fetch(port, request).length <= JAR_SIZE) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue("Load run timed out", done.await(60, TimeUnit.SECONDS));
+        assertEquals("Failed requests", 0, failures.get());
+    }
+
+    static byte[] fetch(int port, String requestLine) throws Exception {
+        Socket sock = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            sock.setSoTimeout(10000);
+            sock.getOutputStream().write((requestLine + "\r\n\r\n").getBytes("ISO-8859-1"));
+            sock.getOutputStream().flush();
+            InputStream in = sock.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                response.write(buffer, 0, n);
+            }
+            return response.toByteArray();
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * Work manager that runs everything on a cached thread pool (like
+     * BasicWorkManager) so we can see how many threads the server needed.
+     */
+    static class CountingWorkManager implements WorkManager {
+
+        ThreadPoolExecutor executor =
+                (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduler =
+                Executors.newSingleThreadScheduledExecutor();
+
+        void shutdownNow() {
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+
+        @Override
+        public void queueTask(ClassLoader contextClassLoader, Runnable task) {
+            executor.execute(task);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(ClassLoader contextClassLoader,
+                Runnable command, long delay, TimeUnit unit) {
+            return scheduler.schedule(command, delay, unit);
+        }
+    }
+}
@@ -0,0 +1,997 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemManager;
+import org.apache.commons.vfs2.VFS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the HTTP behaviour of the codebase servers. Each test is run against
+ * both the blocking and the non-blocking server.
+ *
+ * @author trasukg
+ */
+public class ClassServerTest {
+
+    File workDir = null;
+    byte[] content = null;
+    FileObject localJar = null;
+    FileObject nestedJar = null;
+    ClassServerLoadTest.CountingWorkManager workManager = null;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = File.createTempFile("class-server-test", "");
+        workDir.delete();
+        workDir.mkdirs();
+        content = new byte[200 * 1024];
+        new Random(1).nextBytes(content);
+        File jarFile = new File(workDir, "local-dl.jar");
+        OutputStream out = new FileOutputStream(jarFile);
+        out.write(content);
+        out.close();
+        /* A jar nested inside a service archive, like the lib-dl jars in a
+         deployed service. */
+        File archive = new File(workDir, "service.ssar");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+        zip.putNextEntry(new ZipEntry("lib-dl/nested-dl.jar"));
+        zip.write(content);
+        zip.closeEntry();
+        zip.close();
+        FileSystemManager fsm = VFS.getManager();
+        localJar = fsm.toFileObject(jarFile);
+        nestedJar = fsm.createFileSystem("jar", fsm.toFileObject(archive))
+                .resolveFile("lib-dl/nested-dl.jar");
+        workManager = new ClassServerLoadTest.CountingWorkManager();
+    }
+
+    @After
+    public void tearDown() {
+        workManager.shutdownNow();
+        for (File f : workDir.listFiles()) {
+            f.delete();
+        }
+        workDir.delete();
+    }
+
+    AbstractClassServer[] startServers(String cacheSize) {
+        Properties props = new Properties();
+        props.setProperty(Strings.CACHE_SIZE, cacheSize);
+        return startServers(props);
+    }
+
+    AbstractClassServer[] startServers(Properties props) {
+        props.setProperty(Strings.INITIAL_PORT, "19280");
+        ClassServer blocking = new ClassServer();
+        blocking.workManager = workManager;
+        blocking.properties = props;
+        blocking.init();
+        NioClassServer nio = new NioClassServer();
+        nio.workManager = workManager;
+        nio.properties = props;
+        nio.init();
+        return new AbstractClassServer[]{blocking, nio};
+    }
+
+    void stopServers(AbstractClassServer[] servers) {
+        ((ClassServer) servers[0]).terminate();
+        ((NioClassServer) servers[1]).terminate();
+    }
+
+    static String head(byte[] response) throws Exception {
+        return new String(response, 0, bodyStart(response), "ISO-8859-1");
+    }
+
+    static int bodyStart(byte[] response) {
+        for (int i = 0; i + 3 < response.length; i++) {
+            if (response[i] == '\r' && response[i + 1] == '\n'
+                    && response[i + 2] == '\r' && response[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return response.length;
+    }
+
+    static byte[] body(byte[] response) {
+        return Arrays.copyOfRange(response, bodyStart(response), response.length);
+    }
+
+    /**
+     * Read one response off a persistent connection, using its Content-Length
+     * to find the end.
+     *
+     * @return The head, with the body length appended after a '#'.
+     */
+    static String readResponse(InputStream in, boolean hasBody) throws Exception {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) {
+                throw new Exception("Connection closed after " + head);
+            }
+            head.append((char) c);
+        }
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(line.substring(16));
+            }
+        }
+        int read = 0;
+        while (hasBody && read < length && in.read() >= 0) {
+            read++;
+        }
+        return head + "#" + read;
+    }
+
+    static void send(Socket sock, String requests) throws Exception {
+        sock.getOutputStream().write(requests.getBytes("ISO-8859-1"));
+        sock.getOutputStream().flush();
+    }
+
+    /**
+     * Jars on the local disk (sent with transferTo) and jars nested inside an
+     * archive (streamed through a buffer) should both arrive intact.
+     */
+    @Test
+    public void testServesLocalAndNestedJars() throws Exception {
+        AbstractClassServer[] servers = startServers("0");
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addFile(localJar);
+                context.addFile(nestedJar);
+                for (String jar : new String[]{"local-dl.jar", "nested-dl.jar"}) {
+                    byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                            "GET /app/" + jar + " HTTP/1.0");
+                    assertTrue(head(response), head(response).contains(
+                            "Content-Length: " + content.length));
+                    assertArrayEquals("Body of " + jar + " from " + server.getClass().getSimpleName(),
+                            content, body(response));
+                }
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * The second GET of a jar should come out of the cache, and replacing the
+     * jar should make the next GET go back to the file.
+     */
+    @Test
+    public void testContentCache() throws Exception {
+        AbstractClassServer[] servers = startServers("1000000");
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addFile(nestedJar);
+                String request = "GET /app/nested-dl.jar HTTP/1.0";
+                ClassServerLoadTest.fetch(server.getPort(), request);
+                assertArrayEquals(content, body(ClassServerLoadTest.fetch(server.getPort(), request)));
+                assertEquals(1, server.getCacheHits());
+                assertEquals(1, server.getCacheMisses());
+                assertEquals(content.length, server.getCacheSize());
+
+                context.addFile(nestedJar.getFileSystem().resolveFile("lib-dl/nested-dl.jar"));
+                assertEquals("Entry survived addFile", 0, server.getCacheEntries());
+                ClassServerLoadTest.fetch(server.getPort(), request);
+                assertEquals(2, server.getCacheMisses());
+
+                server.destroyContext(context);
+                assertEquals("Entry survived destroyContext", 0, server.getCacheSize());
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * The cache counters should be visible through JMX, the way the
+     * MBeanRegistrar registers components.
+     */
+    @Test
+    public void testCacheCountersInJmx() throws Exception {
+        AbstractClassServer[] servers = startServers("1000000");
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.river.container:name=classServerTest");
+        try {
+            mbs.registerMBean(servers[1], name);
+            servers[1].createContext("app").addFile(localJar);
+            ClassServerLoadTest.fetch(servers[1].getPort(), "GET /app/local-dl.jar HTTP/1.0");
+            assertEquals(1L, mbs.getAttribute(name, "CacheMisses"));
+            assertEquals((long) content.length, mbs.getAttribute(name, "CacheSize"));
+        } finally {
+            mbs.unregisterMBean(name);
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * With listenAddresses set, the servers should only listen there, and
+     * keep figures for that listener.
+     */
+    @Test
+    public void testListenerStats() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.LISTEN_ADDRESSES, "127.0.0.1");
+        props.setProperty(Strings.ACCEPT_THREADS, "2");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                for (int i = 0; i < 3; i++) {
+                    byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                            "GET /app/local-dl.jar HTTP/1.0");
+                    assertArrayEquals(content, body(response));
+                }
+                String listener = "127.0.0.1:" + server.getPort();
+                assertEquals(Collections.singleton(listener),
+                        server.getListenerConnections().keySet());
+                assertEquals(Long.valueOf(3), server.getListenerConnections().get(listener));
+                assertEquals(Long.valueOf(3), server.getListenerRequests().get(listener));
+                assertTrue(server.getListenerBytesSent().get(listener) > 3L * content.length);
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * Every response should show up in the status counts, the histograms,
+     * the top jars and the recent requests, all readable through JMX.
+     */
+    @Test
+    public void testRequestMetrics() throws Exception {
+        AbstractClassServer[] servers = startServers("0");
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.river.container:name=classServerMetricsTest");
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                server.contexts.get("app").addFile(nestedJar);
+                for (String path : new String[]{"local-dl.jar", "nested-dl.jar",
+                            "local-dl.jar", "missing.jar"}) {
+                    ClassServerLoadTest.fetch(server.getPort(), "GET /app/" + path + " HTTP/1.0");
+                }
+                assertEquals(Long.valueOf(3), server.getStatusCounts().get("200"));
+                assertEquals(Long.valueOf(1), server.getStatusCounts().get("404"));
+                assertEquals(3, server.getAppLatency().get("app").getCount());
+                HistogramSnapshot size = server.getJarResponseSize().get("app/local-dl.jar");
+                assertEquals(2, size.getCount());
+                assertTrue(size.getP50() >= content.length
+                        && size.getP50() <= content.length * 9 / 8 + 1000);
+                assertEquals("app/local-dl.jar", server.getTopJars().get(0).getPath());
+                assertEquals(2, server.getTopJars().get(0).getRequests());
+
+                List<String> recent = server.getRecentRequests();
+                assertEquals(4, recent.size());
+                assertTrue(recent.get(0), recent.get(0).contains(" GET app/missing.jar 404 "));
+                assertTrue(recent.get(1), recent.get(1).contains(
+                        " 127.0.0.1 GET app/local-dl.jar 200 "));
+            }
+            mbs.registerMBean(servers[1], name);
+            assertNotNull(mbs.getAttribute(name, "AppLatency"));
+            assertNotNull(mbs.getAttribute(name, "TopJars"));
+            assertNotNull(mbs.getAttribute(name, "RecentRequests"));
+            mbs.unregisterMBean(name);
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * Several HTTP/1.1 requests sent back-to-back on one connection should
+     * each get their answer, in order, and the connection should only close
+     * when the client asks.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        AbstractClassServer[] servers = startServers("0");
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addFile(localJar);
+                context.addFile(nestedJar);
+                Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                try {
+                    sock.setSoTimeout(10000);
+                    send(sock, "GET /app/local-dl.jar HTTP/1.1\r\nHost: x\r\n\r\n"
+                            + "HEAD /app/nested-dl.jar HTTP/1.1\r\nHost: x\r\n\r\n"
+                            + "GET /app/missing.jar HTTP/1.1\r\nHost: x\r\n\r\n");
+                    InputStream in = sock.getInputStream();
+                    String first = readResponse(in, true);
+                    assertTrue(first, first.startsWith("HTTP/1.1 200 OK"));
+                    assertTrue(first, first.endsWith("#" + content.length));
+                    assertFalse(first, first.contains("Connection: close"));
+                    String second = readResponse(in, false);
+                    assertTrue(second, second.startsWith("HTTP/1.1 200 OK"));
+                    String third = readResponse(in, true);
+                    assertTrue(third, third.startsWith("HTTP/1.1 404"));
+                    send(sock, "GET /app/nested-dl.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+                    String last = readResponse(in, true);
+                    assertTrue(last, last.contains("Connection: close"));
+                    assertTrue(last, last.endsWith("#" + content.length));
+                    assertEquals("Connection should be closed", -1, in.read());
+                } finally {
+                    sock.close();
+                }
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * An idle persistent connection should be closed once the keep-alive
+     * timeout runs out.
+     */
+    @Test
+    public void testIdleTimeout() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.KEEP_ALIVE_TIMEOUT, "200");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                try {
+                    sock.setSoTimeout(5000);
+                    send(sock, "GET /app/local-dl.jar HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+                    String response = readResponse(sock.getInputStream(), true);
+                    assertTrue(response, response.contains("Connection: keep-alive"));
+                    // Our own read timeout is much longer than the server's.
+                    assertEquals(-1, sock.getInputStream().read());
+                } finally {
+                    sock.close();
+                }
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * A client over its connection limit should be turned away with a 503
+     * and a Retry-After, and let back in once it has closed a connection.
+     */
+    @Test
+    public void testPerClientLimit() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.MAX_CONNECTIONS_PER_CLIENT, "1");
+        props.setProperty(Strings.RETRY_AFTER, "7");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                try {
+                    sock.setSoTimeout(5000);
+                    send(sock, "GET /app/local-dl.jar HTTP/1.1\r\n\r\n");
+                    readResponse(sock.getInputStream(), true);
+                    assertEquals(1, server.getActiveConnections());
+
+                    byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                            "GET /app/local-dl.jar HTTP/1.0");
+                    assertTrue(head(response), head(response).startsWith("HTTP/1.0 503"));
+                    assertEquals("7", headerValue(head(response), "Retry-After"));
+                    assertEquals(1L, server.getConnectionsRejectedPerClient());
+                    assertEquals(0L, server.getConnectionsRejected());
+                } finally {
+                    sock.close();
+                }
+                long deadline = System.currentTimeMillis() + 5000;
+                while (server.getActiveConnections() > 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/local-dl.jar HTTP/1.0");
+                assertArrayEquals(content, body(response));
+                assertEquals(0, server.getQueuedConnections());
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * An application with a bandwidth budget should get its jar at about
+     * that rate, and with a download budget of one, a second download while
+     * the first is going should get a 503.
+     */
+    @Test
+    public void testAppBudget() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.APP_BANDWIDTH + ".app", "100000");
+        props.setProperty(Strings.APP_MAX_DOWNLOADS + ".app", "1");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (final AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                server.createContext("other").addFile(localJar);
+                final byte[][] slow = new byte[1][];
+                final Exception[] failure = new Exception[1];
+                Thread download = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            slow[0] = ClassServerLoadTest.fetch(server.getPort(),
+                                    "GET /app/local-dl.jar HTTP/1.0");
+                        } catch (Exception e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                long start = System.currentTimeMillis();
+                download.start();
+                long deadline = start + 5000;
+                while (server.getAppDownloads().get("app") == 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/local-dl.jar HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 503"));
+                assertEquals(Long.valueOf(1), server.getAppDownloadsRejected().get("app"));
+                // Other applications aren't held back.
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /other/local-dl.jar HTTP/1.0");
+                assertArrayEquals(content, body(response));
+
+                download.join(10000);
+                long elapsed = System.currentTimeMillis() - start;
+                assertFalse("Slow download didn't finish", download.isAlive());
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                assertNotNull(slow[0]);
+                assertArrayEquals(content, body(slow[0]));
+                // 200K at 100K/sec, less the first quarter second's burst.
+                assertTrue("Took " + elapsed + "ms", elapsed >= 1200);
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    static String headerValue(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            if (line.startsWith(name + ": ")) {
+                return line.substring(name.length() + 2);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A client that already has the jar should get a 304 with no body when
+     * it sends back the ETag or the Last-Modified date.
+     */
+    @Test
+    public void testConditionalGet() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.CACHE_CONTROL, "max-age=60");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                String get = "GET /app/local-dl.jar HTTP/1.0";
+                String first = head(ClassServerLoadTest.fetch(server.getPort(), get));
+                String etag = headerValue(first, "ETag");
+                String lastModified = headerValue(first, "Last-Modified");
+                assertEquals('"' + ContentDigests.sha256(localJar) + '"', etag);
+                assertNotNull(first, lastModified);
+                assertEquals("max-age=60", headerValue(first, "Cache-Control"));
+
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        get + "\r\nIf-None-Match: \"other\", " + etag);
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 304"));
+                assertEquals(0, body(response).length);
+                assertEquals(etag, headerValue(head(response), "ETag"));
+
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        get + "\r\nIf-Modified-Since: " + lastModified);
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 304"));
+
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        get + "\r\nIf-None-Match: \"other\"\r\nIf-Modified-Since: " + lastModified);
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                assertEquals(content.length, body(response).length);
+
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        get + "\r\nIf-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * In content-addressed mode the annotation should carry the digest, the
+     * URL should be served as immutable, and a redeployed jar should get a
+     * new URL while the old one stops working.
+     */
+    /**
+     * The annotation should use the configured host, list the jars in the
+     * order they were added, and be the same array until something changes.
+     */
+    @Test
+    public void testCodebaseAnnotation() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.HOST, "codebase.example.com");
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addFile(nestedJar);
+                context.addFile(localJar);
+                URL[] annotation = context.getCodebaseAnnotation();
+                assertEquals(2, annotation.length);
+                assertEquals(new URL("http://codebase.example.com:" + server.getPort()
+                        + "/app/nested-dl.jar"), annotation[0]);
+                assertEquals("/app/local-dl.jar", annotation[1].getPath());
+                assertSame(annotation, context.getCodebaseAnnotation());
+
+                // Adding a jar again keeps its place.
+                context.addFile(nestedJar);
+                URL[] again = context.getCodebaseAnnotation();
+                assertNotSame(annotation, again);
+                assertArrayEquals(annotation, again);
+
+                server.host = "mirror.example.com";
+                ((ClassServerCodebaseContext) context).hostChanged();
+                assertEquals("mirror.example.com", context.getCodebaseAnnotation()[0].getHost());
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    @Test
+    public void testContentAddressedUrls() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Strings.CONTENT_ADDRESSED_URLS, "true");
+        AbstractClassServer[] servers = startServers(props);
+        File redeployDir = new File(workDir, "redeploy");
+        redeployDir.mkdir();
+        File redeployed = new File(redeployDir, "local-dl.jar");
+        OutputStream out = new FileOutputStream(redeployed);
+        out.write(content, 0, 1000);
+        out.close();
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(localJar);
+                URL[] annotation = server.contexts.get("app").getCodebaseAnnotation();
+                String digest = ContentDigests.sha256(localJar);
+                assertEquals("/app/" + digest + "/local-dl.jar", annotation[0].getPath());
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET " + annotation[0].getPath() + " HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                assertEquals(AbstractClassServer.IMMUTABLE_CACHE_CONTROL,
+                        headerValue(head(response), "Cache-Control"));
+                assertArrayEquals(content, body(response));
+
+                // Redeploy with different content.
+                server.createContext("app").addFile(VFS.getManager().toFileObject(redeployed));
+                URL[] newAnnotation = server.contexts.get("app").getCodebaseAnnotation();
+                assertFalse(annotation[0].equals(newAnnotation[0]));
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET " + newAnnotation[0].getPath() + " HTTP/1.0");
+                assertEquals(1000, body(response).length);
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET " + annotation[0].getPath() + " HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 404"));
+            }
+        } finally {
+            stopServers(servers);
+            redeployed.delete();
+            redeployDir.delete();
+        }
+    }
+
+    /**
+     * Single entries should come out of both local and nested jars, whether
+     * they're stored or deflated.
+     */
+    @Test
+    public void testEntryRequests() throws Exception {
+        byte[] stored = Arrays.copyOf(content, 5000);
+        byte[] deflated = new byte[20000];
+        Arrays.fill(deflated, (byte) 'x');
+        ByteArrayOutputStream jarBytes = new ByteArrayOutputStream();
+        ZipOutputStream jar = new ZipOutputStream(jarBytes);
+        ZipEntry entry = new ZipEntry("com/example/Stored.class");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(stored.length);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        entry.setCrc(crc.getValue());
+        jar.putNextEntry(entry);
+        jar.write(stored);
+        jar.putNextEntry(new ZipEntry("com/example/Deflated.class"));
+        jar.write(deflated);
+        jar.close();
+        File jarFile = new File(workDir, "classes-dl.jar");
+        OutputStream out = new FileOutputStream(jarFile);
+        out.write(jarBytes.toByteArray());
+        out.close();
+        File archive = new File(workDir, "classes.ssar");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+        zip.putNextEntry(new ZipEntry("lib-dl/nested-classes-dl.jar"));
+        zip.write(jarBytes.toByteArray());
+        zip.close();
+        FileSystemManager fsm = VFS.getManager();
+        FileObject nested = fsm.createFileSystem("jar", fsm.toFileObject(archive))
+                .resolveFile("lib-dl/nested-classes-dl.jar");
+        for (String cacheSize : new String[]{"0", "1000000"}) {
+            Properties props = new Properties();
+            props.setProperty(Strings.CACHE_SIZE, cacheSize);
+            props.setProperty(Strings.ENTRY_REQUESTS, "true");
+            AbstractClassServer[] servers = startServers(props);
+            try {
+                for (AbstractClassServer server : servers) {
+                    CodebaseContext context = server.createContext("app");
+                    context.addFile(fsm.toFileObject(jarFile));
+                    context.addFile(nested);
+                    for (String jarName : new String[]{"classes-dl.jar", "nested-classes-dl.jar"}) {
+                        byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                                "GET /app/" + jarName + "!/com/example/Stored.class HTTP/1.0");
+                        assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                        assertEquals("application/java-vm",
+                                headerValue(head(response), "Content-Type"));
+                        assertArrayEquals(stored, body(response));
+                        response = ClassServerLoadTest.fetch(server.getPort(),
+                                "GET /app/" + jarName + "!/com/example/Deflated.class HTTP/1.0");
+                        assertArrayEquals(deflated, body(response));
+                        String etag = headerValue(head(response), "ETag");
+                        response = ClassServerLoadTest.fetch(server.getPort(),
+                                "GET /app/" + jarName + "!/com/example/Deflated.class HTTP/1.0\r\n"
+                                + "If-None-Match: " + etag);
+                        assertTrue(head(response), head(response).startsWith("HTTP/1.0 304"));
+                        response = ClassServerLoadTest.fetch(server.getPort(),
+                                "GET /app/" + jarName + "!/com/example/Missing.class HTTP/1.0");
+                        assertTrue(head(response), head(response).startsWith("HTTP/1.0 404"));
+                    }
+                }
+            } finally {
+                stopServers(servers);
+            }
+        }
+    }
+
+    /**
+     * Write a jar holding empty entries with the given names.
+     */
+    File jar(String name, String... entries) throws Exception {
+        File file = new File(workDir, name);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        for (String entry : entries) {
+            zip.putNextEntry(new ZipEntry(entry));
+        }
+        zip.close();
+        return file;
+    }
+
+    /**
+     * The merged package index should list each jar's packages, in the order
+     * the jars were added, including jars added after it was first built.
+     */
+    @Test
+    public void testIndexList() throws Exception {
+        File first = jar("first-dl.jar", "META-INF/MANIFEST.MF",
+                "com/example/api/Service.class", "com/example/api/Service$1.class");
+        File second = jar("second-dl.jar", "com/example/impl/", "com/example/impl/Proxy.class",
+                "org/other/Util.class", "top.properties");
+        File third = jar("third-dl.jar", "net/third/Extra.class");
+        FileSystemManager fsm = VFS.getManager();
+        AbstractClassServer[] servers = startServers("0");
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addFile(fsm.toFileObject(first));
+                context.addFile(localJar);
+                context.addFile(fsm.toFileObject(second));
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/META-INF/INDEX.LIST HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                assertEquals("JarIndex-Version: 1.0\n\n"
+                        + "first-dl.jar\ncom/example/api\n\n"
+                        + "second-dl.jar\ncom/example/impl\norg/other\ntop.properties\n\n",
+                        new String(body(response), "UTF-8"));
+                // A jar added later is listed the next time the index is asked for.
+                context.addFile(fsm.toFileObject(third));
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/META-INF/INDEX.LIST HTTP/1.0");
+                assertTrue(new String(body(response), "UTF-8")
+                        .endsWith("third-dl.jar\nnet/third\n\n"));
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /other/META-INF/INDEX.LIST HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 404"));
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * In bundled mode the application's own jars should be replaced in the
+     * annotation by one jar holding the first copy of each entry, kept on
+     * disk and used again while the jars are the same. Shared platform jars
+     * stay out of the bundle.
+     */
+    @Test
+    public void testBundles() throws Exception {
+        File first = jar("first-dl.jar", "META-INF/MANIFEST.MF", "META-INF/SIGNER.SF",
+                "com/example/api/Service.class", "com/example/Shared.class");
+        File second = jar("second-dl.jar", "META-INF/MANIFEST.MF",
+                "com/example/impl/Proxy.class", "com/example/Shared.class");
+        File platform = jar("platform-dl.jar", "net/platform/Base.class");
+        File bundleDir = new File(workDir, "bundles");
+        Properties props = new Properties();
+        props.setProperty(Strings.BUNDLES, "true");
+        props.setProperty(Strings.BUNDLE_DIRECTORY, bundleDir.getPath());
+        FileSystemManager fsm = VFS.getManager();
+        AbstractClassServer[] servers = startServers(props);
+        try {
+            String bundleName = null;
+            for (AbstractClassServer server : servers) {
+                CodebaseContext context = server.createContext("app");
+                context.addPlatformFile(fsm.toFileObject(platform));
+                context.addFile(fsm.toFileObject(first));
+                context.addFile(fsm.toFileObject(second));
+                URL[] annotation = context.getCodebaseAnnotation();
+                // The shared platform jar keeps its own entry.
+                assertEquals(2, annotation.length);
+                assertEquals("/platform/platform-dl.jar", annotation[0].getPath());
+                String path = annotation[1].getPath();
+                assertTrue(path, path.startsWith("/app/" + AbstractClassServer.BUNDLE_PREFIX));
+                if (bundleName == null) {
+                    bundleName = path;
+                }
+                assertEquals(bundleName, path);
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET " + path + " HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                ZipInputStream bundle = new ZipInputStream(
+                        new ByteArrayInputStream(body(response)));
+                List<String> names = new ArrayList<String>();
+                ZipEntry entry;
+                while ((entry = bundle.getNextEntry()) != null) {
+                    names.add(entry.getName());
+                }
+                assertEquals(Arrays.asList("META-INF/MANIFEST.MF",
+                        "com/example/api/Service.class", "com/example/Shared.class",
+                        "com/example/impl/Proxy.class"), names);
+                // The separate jars are still there.
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/second-dl.jar HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+            }
+            assertEquals(1, new File(bundleDir, "app").list().length);
+        } finally {
+            stopServers(servers);
+            for (File f : new File(bundleDir, "app").listFiles()) {
+                f.delete();
+            }
+            new File(bundleDir, "app").delete();
+            bundleDir.delete();
+        }
+    }
+
+    /**
+     * A platform jar added by several applications should be served once,
+     * from the platform namespace, for as long as any of them is deployed.
+     */
+    @Test
+    public void testPlatformJars() throws Exception {
+        AbstractClassServer[] servers = startServers("0");
+        try {
+            for (AbstractClassServer server : servers) {
+                CodebaseContext first = server.createContext("first");
+                first.addPlatformFile(localJar);
+                first.addFile(nestedJar);
+                CodebaseContext second = server.createContext("second");
+                second.addPlatformFile(localJar);
+                for (CodebaseContext context : new CodebaseContext[]{first, second}) {
+                    assertEquals("/platform/local-dl.jar",
+                            context.getCodebaseAnnotation()[0].getPath());
+                }
+                assertEquals("/first/nested-dl.jar",
+                        first.getCodebaseAnnotation()[1].getPath());
+                assertEquals(Collections.singletonMap("local-dl.jar", 2),
+                        server.getPlatformJars());
+                byte[] response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /platform/local-dl.jar HTTP/1.0");
+                assertArrayEquals(content, body(response));
+
+                server.destroyContext(first);
+                assertEquals(Collections.singletonMap("local-dl.jar", 1),
+                        server.getPlatformJars());
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /platform/local-dl.jar HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+                // Redeploying lets go of the old context's share.
+                server.createContext("second").addPlatformFile(localJar);
+                assertEquals(Collections.singletonMap("local-dl.jar", 1),
+                        server.getPlatformJars());
+                server.destroyContext(server.contexts.get("second"));
+                assertTrue(server.getPlatformJars().isEmpty());
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /platform/local-dl.jar HTTP/1.0");
+                assertTrue(head(response), head(response).startsWith("HTTP/1.0 404"));
+                try {
+                    server.createContext(AbstractClassServer.PLATFORM);
+                    fail("The platform namespace isn't an application");
+                } catch (RuntimeException expected) {
+                }
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+
+    /**
+     * Range requests should get just the bytes asked for, whether the jar
+     * comes from the cache, a local file or a stream.
+     */
+    @Test
+    public void testRangeRequests() throws Exception {
+        for (String cacheSize : new String[]{"0", "1000000"}) {
+            AbstractClassServer[] servers = startServers(cacheSize);
+            try {
+                for (AbstractClassServer server : servers) {
+                    CodebaseContext context = server.createContext("app");
+                    context.addFile(localJar);
+                    context.addFile(nestedJar);
+                    for (String jar : new String[]{"local-dl.jar", "nested-dl.jar"}) {
+                        checkRanges(server.getPort(), "GET /app/" + jar + " HTTP/1.0");
+                    }
+                }
+            } finally {
+                stopServers(servers);
+            }
+        }
+    }
+
+    private void checkRanges(int port, String get) throws Exception {
+        String etag = headerValue(head(ClassServerLoadTest.fetch(port, get)), "ETag");
+
+        byte[] response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=10-19");
+        assertTrue(head(response), head(response).startsWith("HTTP/1.0 206"));
+        assertEquals("bytes 10-19/" + content.length, headerValue(head(response), "Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), body(response));
+
+        response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=-5");
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 5, content.length),
+                body(response));
+
+        response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=0-3, 100-103");
+        assertEquals("multipart/byteranges; boundary=" + AbstractClassServer.MULTIPART_BOUNDARY,
+                headerValue(head(response), "Content-Type"));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int first : new int[]{0, 100}) {
+            expected.write(("\r\n--" + AbstractClassServer.MULTIPART_BOUNDARY
+                    + "\r\nContent-Type: application/java\r\nContent-Range: bytes "
+                    + first + "-" + (first + 3) + "/" + content.length + "\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            expected.write(content, first, 4);
+        }
+        expected.write(("\r\n--" + AbstractClassServer.MULTIPART_BOUNDARY + "--\r\n")
+                .getBytes("ISO-8859-1"));
+        assertArrayEquals(expected.toByteArray(), body(response));
+        assertEquals(Integer.toString(expected.size()),
+                headerValue(head(response), "Content-Length"));
+
+        response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=5-9\r\nIf-Range: " + etag);
+        assertTrue(head(response), head(response).startsWith("HTTP/1.0 206"));
+        response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=5-9\r\nIf-Range: \"stale\"");
+        assertTrue(head(response), head(response).startsWith("HTTP/1.0 200"));
+        assertEquals(content.length, body(response).length);
+
+        response = ClassServerLoadTest.fetch(port, get + "\r\nRange: bytes=" + content.length + "-");
+        assertTrue(head(response), head(response).startsWith("HTTP/1.0 416"));
+        assertEquals("bytes */" + content.length, headerValue(head(response), "Content-Range"));
+    }
+
+    /**
+     * A jar that compresses well should get a gzip copy in the background,
+     * which goes to clients that accept gzip and not to anyone else.
+     */
+    @Test
+    public void testGzipVariant() throws Exception {
+        File textJar = new File(workDir, "text-dl.jar");
+        OutputStream out = new FileOutputStream(textJar);
+        for (int i = 0; i < 2000; i++) {
+            out.write(("line " + i + " of some very compressible text\n").getBytes("ISO-8859-1"));
+        }
+        out.close();
+        FileObject textJarObject = VFS.getManager().toFileObject(textJar);
+        byte[] original = new byte[(int) textJar.length()];
+        InputStream fileIn = new FileInputStream(textJar);
+        assertEquals(original.length, fileIn.read(original));
+        fileIn.close();
+        AbstractClassServer[] servers = startServers("1000000");
+        try {
+            for (AbstractClassServer server : servers) {
+                server.createContext("app").addFile(textJarObject);
+                String get = "GET /app/text-dl.jar HTTP/1.0\r\nAccept-Encoding: gzip, deflate";
+                long deadline = System.currentTimeMillis() + 10000;
+                byte[] response;
+                do {
+                    Thread.sleep(20);
+                    response = ClassServerLoadTest.fetch(server.getPort(), get);
+                } while (headerValue(head(response), "Content-Encoding") == null
+                        && System.currentTimeMillis() < deadline);
+                assertEquals("gzip", headerValue(head(response), "Content-Encoding"));
+                assertEquals("Accept-Encoding", headerValue(head(response), "Vary"));
+                assertTrue(headerValue(head(response), "ETag").endsWith("-gzip\""));
+                assertTrue(body(response).length < original.length / 2);
+                ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+                InputStream in = new GZIPInputStream(new ByteArrayInputStream(body(response)));
+                int c;
+                while ((c = in.read()) >= 0) {
+                    unzipped.write(c);
+                }
+                assertArrayEquals(original, unzipped.toByteArray());
+
+                response = ClassServerLoadTest.fetch(server.getPort(),
+                        "GET /app/text-dl.jar HTTP/1.0\r\nAccept-Encoding: gzip;q=0");
+                assertNull(headerValue(head(response), "Content-Encoding"));
+                assertArrayEquals(original, body(response));
+
+                double ratio = server.getCompressionRatios().get("app");
+                assertTrue("Ratio " + ratio, ratio < 0.5);
+                assertEquals(original.length - body(ClassServerLoadTest.fetch(server.getPort(), get)).length,
+                        (long) server.getCompressionBytesSaved().get("app") / 2);
+            }
+        } finally {
+            stopServers(servers);
+        }
+    }
+}
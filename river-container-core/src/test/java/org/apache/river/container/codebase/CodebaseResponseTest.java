@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author trasukg
+ */
+public class CodebaseResponseTest {
+
+    private static byte[] content(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * With reads deferred, writeTo() mustn't read the stream itself; it
+     * stops and asks for fill() each time it runs out.
+     */
+    @Test
+    public void testDeferredReads() throws Exception {
+        byte[] body = content(3 * CodebaseResponse.STREAM_BUFFER_SIZE + 10);
+        CodebaseResponse UUT = new CodebaseResponse(ByteBuffer.wrap(new byte[]{'H'}), true);
+        UUT.body(new ByteArrayInputStream(body), 10, body.length - 10);
+        UUT.deferReads();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        WritableByteChannel out = Channels.newChannel(sink);
+        int fills = 0;
+        while (!UUT.writeTo(out)) {
+            assertTrue("Stopped without needing a fill", UUT.needsFill());
+            UUT.fill();
+            fills++;
+        }
+        assertEquals(3, fills);
+        byte[] sent = sink.toByteArray();
+        assertEquals(body.length - 9, sent.length);
+        assertEquals('H', sent[0]);
+        assertEquals(body[10], sent[1]);
+        assertEquals(body[body.length - 1], sent[sent.length - 1]);
+    }
+
+    /**
+     * A header followed by a body in memory should go out in a single
+     * gathering write.
+     */
+    @Test
+    public void testHeadAndBodyGathered() throws Exception {
+        byte[] body = content(1000);
+        CodebaseResponse UUT = new CodebaseResponse(ByteBuffer.wrap(new byte[]{'H'}), true);
+        UUT.body(new ByteArrayInputStream(body));
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final int[] writes = new int[1];
+        GatheringByteChannel out = new GatheringByteChannel() {
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                writes[0]++;
+                long n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    n += drain(srcs[i]);
+                }
+                return n;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                writes[0]++;
+                return drain(src);
+            }
+
+            private int drain(ByteBuffer src) {
+                int n = src.remaining();
+                while (src.hasRemaining()) {
+                    sink.write(src.get());
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertTrue(UUT.writeTo(out));
+        assertEquals(1, writes[0]);
+        assertEquals(body.length + 1, sink.size());
+        assertEquals(body.length + 1, UUT.bytesWritten());
+    }
+
+    /**
+     * A stream that ends before the Content-Length that's been promised
+     * must fail the response, not finish it early.
+     */
+    @Test
+    public void testShortStreamFails() throws Exception {
+        CodebaseResponse UUT = new CodebaseResponse(ByteBuffer.wrap(new byte[]{'H'}), true);
+        UUT.body(new ByteArrayInputStream(content(100)), 0, 200);
+        try {
+            UUT.writeTo(Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Short stream finished the response");
+        } catch (IOException e) {
+        }
+        UUT = new CodebaseResponse(ByteBuffer.wrap(new byte[]{'H'}), true);
+        UUT.body(new ByteArrayInputStream(content(100)), 150, 10);
+        try {
+            UUT.writeTo(Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Stream too short to skip finished the response");
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Likewise a file that's shorter than the range being sent.
+     */
+    @Test
+    public void testShrunkFileFails() throws Exception {
+        File file = File.createTempFile("response-test", ".jar");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(content(100));
+            out.close();
+            CodebaseResponse UUT = new CodebaseResponse(ByteBuffer.wrap(new byte[]{'H'}), true);
+            UUT.body(new RandomAccessFile(file, "r").getChannel(), 0, 200);
+            try {
+                UUT.writeTo(Channels.newChannel(new ByteArrayOutputStream()));
+                fail("Short file finished the response");
+            } catch (IOException e) {
+            } finally {
+                UUT.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
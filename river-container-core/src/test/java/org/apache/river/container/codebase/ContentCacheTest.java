@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author trasukg
+ */
+public class ContentCacheTest {
+
+    File[] files = new File[3];
+    FileObject[] fileObjects = new FileObject[3];
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("cache-test", ".jar");
+            FileOutputStream out = new FileOutputStream(files[i]);
+            out.write(new byte[100]);
+            out.write(i);
+            out.close();
+            fileObjects[i] = VFS.getManager().toFileObject(files[i]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    /**
+     * With room for two entries, loading a third should push out the one
+     * that was used least recently.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        ContentCache UUT = new ContentCache(250);
+        UUT.load("app/a.jar", fileObjects[0], 101);
+        UUT.load("app/b.jar", fileObjects[1], 101);
+        assertNotNull(UUT.get("app/a.jar", fileObjects[0]));
+        UUT.load("app/c.jar", fileObjects[2], 101);
+
+        assertNull("b should have been evicted", UUT.get("app/b.jar", fileObjects[1]));
+        ByteBuffer a = UUT.get("app/a.jar", fileObjects[0]);
+        assertEquals(101, a.remaining());
+        assertEquals(0, a.get(100));
+        assertEquals(2, UUT.get("app/c.jar", fileObjects[2]).get(100));
+        assertEquals(1, UUT.getEvictions());
+        assertEquals(202, UUT.getSize());
+    }
+
+    /**
+     * An entry read from a different FileObject than the one now mapped
+     * mustn't be served.
+     */
+    @Test
+    public void testChecksSource() throws Exception {
+        ContentCache UUT = new ContentCache(1000);
+        UUT.load("app/a.jar", fileObjects[0], 101);
+        assertNull(UUT.get("app/a.jar", fileObjects[1]));
+        assertEquals(1, UUT.getMisses());
+    }
+
+    @Test
+    public void testInvalidatePrefix() throws Exception {
+        ContentCache UUT = new ContentCache(1000);
+        UUT.load("app/a.jar", fileObjects[0], 101);
+        UUT.load("app/b.jar", fileObjects[1], 101);
+        UUT.load("other/a.jar", fileObjects[2], 101);
+        UUT.invalidatePrefix("app/");
+        assertEquals(1, UUT.getEntryCount());
+        assertEquals(101, UUT.getSize());
+    }
+
+    /**
+     * Requests that all miss on the same jar at once should share one read
+     * of it.
+     */
+    @Test
+    public void testConcurrentLoadsShareOneRead() throws Exception {
+        final ContentCache UUT = new ContentCache(1000);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        ByteBuffer content = UUT.load("app/a.jar", fileObjects[0], 101);
+                        if (content.remaining() != 101 || content.get(100) != 0) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(1, UUT.getLoads());
+        assertEquals(101, UUT.getSize());
+    }
+
+    @Test
+    public void testZeroBudgetTurnsCacheOff() {
+        assertFalse(new ContentCache(0).accepts(0));
+        assertFalse(new ContentCache(100).accepts(101));
+    }
+}
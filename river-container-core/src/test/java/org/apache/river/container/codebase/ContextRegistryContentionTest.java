@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.WorkManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Contention test for the codebase context registry: several request
+ * threads look jars up as fast as they can while a deployer thread keeps
+ * redeploying another application. The lookups must never fail for the app
+ * that isn't changing, and must never see a half-built table for the one
+ * that is. How fast the lookups go meanwhile is measured by
+ * ContextRegistryContentionBenchmark, in the benchmarks module.
+ *
+ * @author trasukg
+ */
+public class ContextRegistryContentionTest {
+
+    private static final int READERS = 4;
+    private static final long RUN_MILLIS = 1000;
+    File[] files = new File[3];
+    FileObject[] fileObjects = new FileObject[3];
+
+    @Before
+    public void setUp() throws Exception {
+        String[] names = {"stable-dl.jar", "churn-a-dl.jar", "churn-b-dl.jar"};
+        File dir = File.createTempFile("contention-test", "");
+        dir.delete();
+        dir.mkdir();
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(dir, names[i]);
+            files[i].createNewFile();
+            fileObjects[i] = VFS.getManager().toFileObject(files[i]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : files) {
+            f.delete();
+        }
+        files[0].getParentFile().delete();
+    }
+
+    @Test
+    public void testLookupsDuringRedeploy() throws Exception {
+        final AbstractClassServer UUT = new AbstractClassServer() {
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+
+            @Override
+            WorkManager getWorkManager() {
+                return null;
+            }
+        };
+        UUT.createContext("stable").addFile(fileObjects[0]);
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong redeploys = new AtomicLong();
+        final AtomicInteger failures = new AtomicInteger();
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        final CountDownLatch done = new CountDownLatch(READERS + 1);
+        for (int i = 0; i < READERS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        for (int j = 0; j < 1000; j++) {
+                            if (UUT.findFileObjectForPath("stable/stable-dl.jar") != fileObjects[0]) {
+                                failures.incrementAndGet();
+                            }
+                            FileObject b = UUT.findFileObjectForPath("churn/churn-b-dl.jar");
+                            if (b != null && b != fileObjects[2]) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        n += 2000;
+                    }
+                    lookups.addAndGet(n);
+                    done.countDown();
+                }
+            }.start();
+        }
+        new Thread() {
+            @Override
+            public void run() {
+                while (System.currentTimeMillis() < end) {
+                    CodebaseContext context = UUT.createContext("churn");
+                    context.addFile(fileObjects[1]);
+                    context.addFile(fileObjects[2]);
+                    redeploys.incrementAndGet();
+                }
+                done.countDown();
+            }
+        }.start();
+        assertTrue(done.await(RUN_MILLIS + 10000, TimeUnit.MILLISECONDS));
+        assertEquals("Failed lookups", 0, failures.get());
+        // Make sure the two sides actually ran against each other.
+        assertTrue("No lookups", lookups.get() > 0);
+        assertTrue("No redeploys", redeploys.get() > 1);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's bucketing and percentiles.
+ *
+ * @author trasukg
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(value + " above its bucket", value <= Histogram.highestInBucket(bucket));
+            assertTrue(value + " within 12.5%",
+                    Histogram.highestInBucket(bucket) <= value + value / 8 + 1);
+            if (bucket > 0) {
+                assertTrue(value + " below its bucket",
+                        value > Histogram.highestInBucket(bucket - 1));
+            }
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram UUT = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            UUT.record(i);
+        }
+        HistogramSnapshot snapshot = UUT.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(1000, snapshot.getMax());
+        assertTrue(snapshot.getP50() >= 500 && snapshot.getP50() <= 500 * 9 / 8);
+        assertTrue(snapshot.getP99() >= 990 && snapshot.getP99() <= 1000);
+    }
+}
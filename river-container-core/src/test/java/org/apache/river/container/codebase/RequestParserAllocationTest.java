@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.codebase;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.apache.river.container.work.WorkManager;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Allocation benchmark for the request path: parsing a typical GET and
+ * looking its jar up in the path index should create (next to) nothing, so
+ * the bytes allocated per request have to stay down at the noise level.
+ * Uses the HotSpot per-thread allocation counter, and is skipped on VMs that
+ * don't have one.
+ *
+ * @author trasukg
+ */
+public class RequestParserAllocationTest {
+
+    private static final int WARMUP = 200000;
+    private static final int REQUESTS = 1000000;
+    private static final byte[] REQUEST = CodebaseRequest.ascii(
+            "GET /reggie/reggie-dl.jar HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Java/1.8.0\r\n"
+            + "Accept: text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2\r\n"
+            + "Connection: keep-alive\r\n\r\n");
+    File file;
+    FileObject fileObject;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("reggie-dl", ".jar");
+        fileObject = VFS.getManager().toFileObject(file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testParseAndLookupDontAllocate() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        AbstractClassServer server = new AbstractClassServer() {
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+
+            @Override
+            WorkManager getWorkManager() {
+                return null;
+            }
+        };
+        server.createContext("reggie").addFile(fileObject);
+        CodebaseRequest UUT = new CodebaseRequest();
+        String jarName = fileObject.getName().getBaseName();
+        byte[] request = CodebaseRequest.ascii(new String(REQUEST, CodebaseRequest.ISO_8859_1)
+                .replace("reggie-dl.jar", jarName));
+
+        int found = run(server.index, UUT, request, WARMUP);
+        assertEquals(WARMUP, found);
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        found = run(server.index, UUT, request, REQUESTS);
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertEquals(REQUESTS, found);
+        double perRequest = (double) allocated / REQUESTS;
+        assertTrue("Allocated " + perRequest + " bytes per request", perRequest < 1.0);
+    }
+
+    private static int run(PathIndex index, CodebaseRequest parser, byte[] request, int n) {
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            int end = AbstractClassServer.headEnd(request, request.length);
+            if (parser.parse(request, 0, end) && parser.method == CodebaseRequest.GET) {
+                byte[] buf = parser.buf;
+                int slash = CodebaseRequest.indexOf(buf, '/', parser.targetStart + 1, parser.targetEnd);
+                if (index.lookup(buf, parser.targetStart + 1, slash, slash + 1, parser.targetEnd) != null
+                        && parser.wantsKeepAlive()) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.river.container.deployer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+
+ @author trasukg
+ */
+public class ArchiveCacheTest {
+
+    File dir = null;
+    ArchiveCache UUT = null;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("archive-cache", "");
+        dir.delete();
+        dir.mkdir();
+        UUT = new ArchiveCache(new File(dir, "archives"));
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private FileObject archive(String name, String... entries) throws IOException {
+        File file = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String entry : entries) {
+                out.putNextEntry(new ZipEntry(entry));
+                out.write(entry.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return VFS.getManager().toFileObject(file);
+    }
+
+    /**
+     The archive's contents come out as plain files in a folder of their own.
+     */
+    @Test
+    public void testUnpack() throws Exception {
+        FileObject root = UUT.unpack(archive("reggie.ssar",
+                "start.properties", "lib/reggie.jar", "lib-dl/reggie-dl.jar"));
+        assertEquals("file", root.getName().getScheme());
+        FileObject jar = root.resolveFile("lib/reggie.jar");
+        assertTrue(jar.exists());
+        assertEquals("lib/reggie.jar".length(), jar.getContent().getSize());
+        assertTrue(root.resolveFile("start.properties").exists());
+    }
+
+    /**
+     The same archive is only unpacked once; a changed one gets a new folder.
+     The old one stays while a service might still be running from it, and is
+     cleared away the next time the container starts.
+     */
+    @Test
+    public void testReuse() throws Exception {
+        FileObject archive = archive("reggie.ssar", "start.properties");
+        File first = new File(UUT.unpack(archive).getURL().toURI());
+        File marker = new File(first, "marker");
+        marker.createNewFile();
+        File second = new File(UUT.unpack(archive).getURL().toURI());
+        assertEquals(first, second);
+        assertTrue("Archive was unpacked again", new File(second, "marker").exists());
+
+        archive = archive("reggie.ssar", "start.properties", "lib/reggie.jar");
+        File third = new File(UUT.unpack(archive).getURL().toURI());
+        assertFalse(first.equals(third));
+        assertTrue(new File(third, "lib/reggie.jar").exists());
+        assertTrue("Old version removed while it may be in use", first.exists());
+
+        ArchiveCache restarted = new ArchiveCache(new File(dir, "archives"));
+        assertEquals(third, new File(restarted.unpack(archive).getURL().toURI()));
+        assertFalse("Old version was left behind", first.exists());
+        assertTrue(third.exists());
+    }
+
+    /**
+     An entry that would land outside the folder fails the unpacking, and
+     leaves nothing behind.
+     */
+    @Test
+    public void testEntryOutsideArchive() throws Exception {
+        FileObject archive = archive("evil.ssar", "start.properties", "../evil.txt");
+        try {
+            UUT.unpack(archive);
+            fail("Should have refused the entry");
+        } catch (IOException ex) {
+        }
+        assertFalse(new File(dir, "evil.txt").exists());
+        assertEquals(0, new File(dir, "archives").list().length);
+    }
+}